@@ -0,0 +1,210 @@
+import java.util.List;
+
+/**
+ * Bookkeeping shared by the scheduler implementations: the clock, the
+ * time scale, the event pool and event cancellation. Subclasses only
+ * decide how the events are ordered.
+ *
+ * Unscheduling an entity does not search the queue. It bumps the
+ * entity's event generation, which turns all of its queued events into
+ * tombstones that are skipped when they come due. Once tombstones make
+ * up most of the queue, the subclass is asked to compact it.
+ */
+public abstract class AbstractEventScheduler
+   implements EventScheduler
+{
+   private static final int COMPACT_MIN_TOMBSTONES = 1024;
+
+   protected EventPool pool;
+   private double timeScale;
+   private SimulationClock clock;
+   private long eventCount;
+   private long nextSequence;
+   private int tombstones;
+
+   private UpdateBudget budget;
+
+   protected AbstractEventScheduler(double timeScale, SimulationClock clock)
+   {
+      this.pool = new EventPool();
+      this.budget = new UpdateBudget();
+      this.timeScale = timeScale;
+      this.clock = clock;
+   }
+
+   public SimulationClock getClock()
+   {
+      return this.clock;
+   }
+
+   public long getEventCount()
+   {
+      return this.eventCount;
+   }
+
+   /**
+    * Runs the events due before the given time, one millisecond of
+    * event time at a time while a budget is set, so an update that runs
+    * out of budget stops between two milliseconds and leaves the rest
+    * of the queue as it was. Every update gets through at least one
+    * millisecond, so the world keeps moving however small the budget.
+    */
+   public void updateOnTime(long time)
+   {
+      this.budget.start();
+      if (!this.budget.isLimited())
+      {
+         runUntil(time);
+         return;
+      }
+
+      long next = nextEventTime();
+      while (next < time)
+      {
+         runUntil(next + 1);
+         next = nextEventTime();
+         if (next < time && this.budget.exhausted(time, next))
+         {
+            return;
+         }
+      }
+   }
+
+   public void setUpdateBudget(long budget)
+   {
+      this.budget.setBudget(budget);
+   }
+
+   public long getLag()
+   {
+      return this.budget.getLag();
+   }
+
+   public long getMaxLag()
+   {
+      return this.budget.getMaxLag();
+   }
+
+   public long getOverrunCount()
+   {
+      return this.budget.getOverrunCount();
+   }
+
+   public void scheduleEvent(Entity entity, long afterPeriod)
+   {
+      long time = this.clock.currentTime() +
+              (long)(afterPeriod * timeScale);
+
+      enqueue(this.pool.allocate(time, this.nextSequence++, entity));
+   }
+
+   public void startAnimation(Entity entity, int repeatCount)
+   {
+      entity.startAnimation(this.clock.currentTime(),
+              (long)(entity.getAnimationPeriod() * timeScale), repeatCount);
+   }
+
+   public void unscheduleAllEvents(Entity entity)
+   {
+      this.tombstones += this.pool.cancelAll(entity);
+
+      if (this.tombstones >= COMPACT_MIN_TOMBSTONES &&
+              this.tombstones > size() / 2)
+      {
+         compact();
+         this.tombstones = 0;
+      }
+   }
+
+   public EventPool.Frozen freezePending()
+   {
+      return this.pool.freeze(this.nextSequence);
+   }
+
+   public void restorePending(PendingEvents pending, WorldModel world,
+      ImageStore imageStore)
+   {
+      int events[] = new int[pending.size()];
+      for (int i = 0; i < events.length; i++)
+      {
+         pending.entity(i).makeActivityAction(world, imageStore);
+         events[i] = this.pool.allocate(pending.time(i), pending.sequence(i),
+                 pending.entity(i));
+      }
+      enqueueAll(events, events.length);
+      this.nextSequence = Math.max(this.nextSequence, pending.nextSequence);
+   }
+
+   /**
+    * Adds each entity with an event due before the given time to the
+    * list, once each, in no particular order. Only the due part of the
+    * queue is visited.
+    */
+   public void collectDue(long time, List<Entity> due)
+   {
+      this.pool.startDue();
+      collectDueEvents(time, due);
+   }
+
+   /**
+    * Runs a single event that has just been taken off the queue,
+    * unless it has been cancelled. The clock is moved to the event's
+    * time before it runs, so a virtual clock follows the events.
+    */
+   protected void dispatch(int event)
+   {
+      if (this.pool.isCancelled(event))
+      {
+         this.tombstones--;
+         this.pool.free(event);
+         return;
+      }
+
+      long time = this.pool.time(event);
+      Entity entity = this.pool.complete(event);
+      this.pool.free(event);
+
+      this.clock.advanceTo(time);
+      this.eventCount++;
+      entity.getAction().executeAction(this);
+   }
+
+   /**
+    * Runs every event due before the given time, in order, including
+    * those scheduled along the way.
+    */
+   protected abstract void runUntil(long time);
+
+   /**
+    * Hands each queued event due before the given time, tombstones
+    * included, to pool.collectDue.
+    */
+   protected abstract void collectDueEvents(long time, List<Entity> due);
+
+   /**
+    * Adds the event to the queue.
+    */
+   protected abstract void enqueue(int event);
+
+   /**
+    * Adds the given events to the queue all at once, in no particular
+    * order. Queues that can build themselves in bulk do so.
+    */
+   protected void enqueueAll(int events[], int count)
+   {
+      for (int i = 0; i < count; i++)
+      {
+         enqueue(events[i]);
+      }
+   }
+
+   /**
+    * Gets the number of queued events, tombstones included.
+    */
+   protected abstract int size();
+
+   /**
+    * Frees all cancelled events and drops them from the queue.
+    */
+   protected abstract void compact();
+}
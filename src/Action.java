@@ -4,16 +4,19 @@ public final class Action
    private Entity entity;
    private WorldModel world;
    private ImageStore imageStore;
-   private int repeatCount;
 
    public Action(ActionKind kind, Entity entity, WorldModel world,
-      ImageStore imageStore, int repeatCount)
+      ImageStore imageStore)
    {
       this.kind = kind;
       this.entity = entity;
       this.world = world;
       this.imageStore = imageStore;
-      this.repeatCount = repeatCount;
+   }
+
+   public ActionKind getKind()
+   {
+      return this.kind;
    }
 
    /**
@@ -26,10 +29,6 @@ public final class Action
          case ACTIVITY:
             executeActivityAction(scheduler);
             break;
-
-         case ANIMATION:
-            executeAnimationAction(scheduler);
-            break;
       }
    }
 
@@ -38,7 +37,7 @@ public final class Action
     */
    public void executeActivityAction(EventScheduler scheduler)
    {
-      switch (entity.kind)
+      switch (entity.getKind())
       {
          case MINER_FULL:
             entity.executeMinerFullActivity(world,
@@ -73,22 +72,7 @@ public final class Action
          default:
             throw new UnsupportedOperationException(
                     String.format("executeActivityAction not supported for %s",
-                            entity.kind));
-      }
-   }
-   /**
-    * Asks the scheduler to execute the specified animation action.
-    */
-   public void executeAnimationAction(EventScheduler scheduler)
-   {
-      entity.nextImage();
-
-      if (repeatCount != 1)
-      {
-         scheduler.scheduleEvent(entity,
-                 Functions.createAnimationAction(entity,
-                         Math.max(repeatCount - 1, 0)),
-                 entity.getAnimationPeriod());
+                            entity.getKind()));
       }
    }
 
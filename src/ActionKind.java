@@ -1,5 +1,4 @@
 public enum ActionKind
 {
-   ACTIVITY,
-   ANIMATION
+   ACTIVITY
 }
@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes a Checkpoint of the running world every period of simulated
+ * time. The simulation thread only captures the state, which freezes the
+ * world's columns and the waiting events without copying them; a writer
+ * thread of the autosave's own encodes and writes it out, then releases
+ * the capture. Until then, the first write to a page of rows the writer
+ * has not read yet saves that page, so the copying is spread over the
+ * events that follow.
+ *
+ * Nothing here ever makes the simulation wait. A save that comes due
+ * while the last one is still being written is skipped and counted. Each
+ * file is written next to the target and moved over it, keeping the one
+ * it replaces as a backup, so a crash mid-save leaves the last good one.
+ */
+public final class Autosave
+{
+   private static final long CLOSE_TIMEOUT = 60;
+
+   private String filename;
+   private long period;
+   private long nextSaveTime;
+   private ImageStore imageStore;
+
+   private ExecutorService writer;
+   private AtomicBoolean writing;
+   private AtomicInteger saved;
+   private AtomicInteger skipped;
+   private long maxPause;
+
+   public Autosave(String filename, long period, long startTime,
+      ImageStore imageStore)
+   {
+      this.filename = filename;
+      this.period = period;
+      this.nextSaveTime = startTime + period;
+      this.imageStore = imageStore;
+      this.writer = Executors.newSingleThreadExecutor(task -> {
+         Thread thread = new Thread(task, "autosave");
+         thread.setDaemon(true);
+         return thread;
+      });
+      this.writing = new AtomicBoolean();
+      this.saved = new AtomicInteger();
+      this.skipped = new AtomicInteger();
+   }
+
+   /**
+    * Tells whether a save is due at the given simulated time.
+    */
+   public boolean isDue(long time)
+   {
+      return time >= this.nextSaveTime;
+   }
+
+   public long getNextSaveTime()
+   {
+      return this.nextSaveTime;
+   }
+
+   /**
+    * Captures the world and hands it to the writer. Never blocks; the
+    * save is skipped if the last one is still being written. Must be
+    * called between events, on the thread that runs them.
+    */
+   public void offer(WorldModel world, EventScheduler scheduler, long time)
+   {
+      this.nextSaveTime = time + this.period;
+      if (!this.writing.compareAndSet(false, true))
+      {
+         this.skipped.incrementAndGet();
+         return;
+      }
+
+      long start = System.nanoTime();
+      Checkpoint checkpoint = Checkpoint.capture(world, scheduler,
+              this.imageStore);
+      this.maxPause = Math.max(this.maxPause, System.nanoTime() - start);
+
+      this.writer.execute(() -> {
+         try
+         {
+            checkpoint.write(this.filename, true);
+            this.saved.incrementAndGet();
+         }
+         catch (IOException e)
+         {
+            this.skipped.incrementAndGet();
+            System.err.println(e.getMessage());
+         }
+         finally
+         {
+            checkpoint.release();
+            this.writing.set(false);
+         }
+      });
+   }
+
+   public int getSavedCount()
+   {
+      return this.saved.get();
+   }
+
+   public int getSkippedCount()
+   {
+      return this.skipped.get();
+   }
+
+   /**
+    * Gets the longest time the simulation spent capturing, in
+    * nanoseconds.
+    */
+   public long getMaxPause()
+   {
+      return this.maxPause;
+   }
+
+   /**
+    * Finishes the save already handed over, if any.
+    */
+   public void close()
+   {
+      try
+      {
+         this.writer.shutdown();
+         this.writer.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+   }
+}
@@ -15,6 +15,11 @@ public final class Background
       this.images = images;
    }
 
+   public String getId()
+   {
+      return this.id;
+   }
+
    public void setBackground(WorldModel world, Point pos)
    {
       if (world.withinBounds(pos))
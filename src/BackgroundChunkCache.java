@@ -0,0 +1,86 @@
+import processing.core.PApplet;
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Background chunks drawn once into images of their own, so that the
+ * background of the whole view takes a handful of image() calls. The
+ * most recently used chunks are kept; a chunk is drawn again when the
+ * world hands out a new tile array for it.
+ */
+public final class BackgroundChunkCache
+{
+   private static final int MAX_CHUNKS = 32;
+
+   private PApplet screen;
+   private int tileWidth;
+   private int tileHeight;
+   private Map<Long, Chunk> chunks;
+
+   public BackgroundChunkCache(PApplet screen, int tileWidth, int tileHeight)
+   {
+      this.screen = screen;
+      this.tileWidth = tileWidth;
+      this.tileHeight = tileHeight;
+      this.chunks = new LinkedHashMap<Long, Chunk>(MAX_CHUNKS, 0.75f, true)
+      {
+         protected boolean removeEldestEntry(Map.Entry<Long, Chunk> eldest)
+         {
+            return size() > MAX_CHUNKS;
+         }
+      };
+   }
+
+   /**
+    * Gets the image of the chunk at the given chunk column and row,
+    * drawing it first if it is not cached or its tiles have changed.
+    */
+   public PGraphics getImage(int chunkCol, int chunkRow, PImage tiles[])
+   {
+      long key = ((long) chunkRow << 32) | chunkCol;
+      Chunk chunk = this.chunks.get(key);
+
+      if (chunk == null || chunk.tiles != tiles)
+      {
+         chunk = new Chunk(tiles, bake(tiles));
+         this.chunks.put(key, chunk);
+      }
+      return chunk.image;
+   }
+
+   private PGraphics bake(PImage tiles[])
+   {
+      PGraphics image = this.screen.createGraphics(
+              WorldModel.CHUNK_SIZE * this.tileWidth,
+              WorldModel.CHUNK_SIZE * this.tileHeight);
+
+      image.beginDraw();
+      for (int i = 0; i < tiles.length; i++)
+      {
+         if (tiles[i] != null)
+         {
+            image.image(tiles[i],
+                    i % WorldModel.CHUNK_SIZE * this.tileWidth,
+                    i / WorldModel.CHUNK_SIZE * this.tileHeight);
+         }
+      }
+      image.endDraw();
+
+      return image;
+   }
+
+   private static final class Chunk
+   {
+      private PImage tiles[];
+      private PGraphics image;
+
+      private Chunk(PImage tiles[], PGraphics image)
+      {
+         this.tiles = tiles;
+         this.image = image;
+      }
+   }
+}
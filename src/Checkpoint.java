@@ -0,0 +1,307 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Everything needed to carry on a simulation where it stopped: the
+ * world, each entity's animation and path cache, the events waiting in
+ * the scheduler and the state of the random numbers.
+ *
+ * A checkpoint is a SnapshotFile with FLAG_CHECKPOINT set, never
+ * compressed, so it is mapped and decoded where it lies. After the
+ * world comes the clock time the checkpoint was taken at, the random
+ * numbers, the entity state in table order and then the pending events
+ * as entity, delay and sequence number. Times are saved
+ * as delays from the checkpoint, so resuming on a clock at another time
+ * shifts everything alike; the waiting events are handed to the
+ * scheduler together, so a heap is built in one pass.
+ *
+ * A checkpoint is either captured from a running simulation, to be
+ * written out, or read from a file, to be resumed. Capturing copies
+ * nothing: it freezes the world through a WorldCapture and the events
+ * through EventPool.freeze, and the simulation saves a page of either
+ * only when it writes to one before the writer has read it. Writing may
+ * take place on any thread, and must be followed by release().
+ */
+public final class Checkpoint
+{
+   /* the world read, or the capture to write */
+   private WorldModel world;
+   private WorldCapture capture;
+   private EventPool.Frozen events;
+   private long time;
+   private long randomState;
+
+   /* per entity when read, in table order, relative to time */
+   private long animationStart[];
+   private long animationStep[];
+   private long animationEnd[];
+
+   /* per pending event when read, relative to time */
+   private int eventEntity[];
+   private long eventDelay[];
+   private long eventSequence[];
+   private long nextSequence;
+
+   private Checkpoint()
+   {
+   }
+
+   /**
+    * Writes the world and the scheduler's state as of its clock's time.
+    * Must be called between events, on the thread that runs them.
+    */
+   public static void write(String filename, WorldModel world,
+      EventScheduler scheduler, ImageStore imageStore)
+      throws IOException
+   {
+      Checkpoint checkpoint = capture(world, scheduler, imageStore);
+      try
+      {
+         checkpoint.write(filename, false);
+      }
+      finally
+      {
+         checkpoint.release();
+      }
+   }
+
+   /**
+    * Freezes the world and the scheduler's state as of its clock's time.
+    * Must be called between events, on the thread that runs them.
+    */
+   public static Checkpoint capture(WorldModel world,
+      EventScheduler scheduler, ImageStore imageStore)
+   {
+      Checkpoint checkpoint = new Checkpoint();
+      checkpoint.time = scheduler.getClock().currentTime();
+      checkpoint.capture = WorldCapture.capture(world, imageStore);
+      checkpoint.events = scheduler.freezePending();
+      checkpoint.randomState = Entity.getRandomState();
+      return checkpoint;
+   }
+
+   /**
+    * Writes a captured checkpoint, keeping the file it replaces as a
+    * backup if asked. Safe to call on any thread, until released.
+    */
+   public void write(String filename, boolean backup)
+      throws IOException
+   {
+      SnapshotFile.write(filename, SnapshotFile.FLAG_CHECKPOINT, backup,
+              out -> {
+         SnapshotFile.writeWorld(out, this.capture);
+         SnapshotFile.writeSignedVarLong(out, this.time);
+         SnapshotFile.writeSignedVarLong(out, this.randomState);
+         writeEntities(out);
+         writePending(out);
+      });
+   }
+
+   /**
+    * Lets the simulation write the pages of a captured checkpoint in
+    * place again; it must not be written afterwards.
+    */
+   public void release()
+   {
+      this.capture.release();
+      this.events.release();
+   }
+
+   /**
+    * Reads a checkpoint, restoring its world; resume then restarts the
+    * simulation on a scheduler made for that world.
+    */
+   public static Checkpoint read(String filename, ImageStore imageStore)
+      throws IOException
+   {
+      ByteBuffer in = SnapshotFile.readBody(filename,
+              SnapshotFile.FLAG_CHECKPOINT);
+      Checkpoint checkpoint = new Checkpoint();
+      checkpoint.world = SnapshotFile.readWorld(in, imageStore);
+      try
+      {
+         checkpoint.time = SnapshotFile.readSignedVarLong(in);
+         checkpoint.randomState = SnapshotFile.readSignedVarLong(in);
+         checkpoint.readEntities(in);
+         checkpoint.readPending(in);
+      }
+      catch (BufferUnderflowException | IndexOutOfBoundsException |
+              NegativeArraySizeException e)
+      {
+         throw new IOException("corrupt checkpoint", e);
+      }
+      return checkpoint;
+   }
+
+   public WorldModel getWorld()
+   {
+      return this.world;
+   }
+
+   /**
+    * Gets the clock time the checkpoint was taken at.
+    */
+   public long getTime()
+   {
+      return this.time;
+   }
+
+   /**
+    * Puts back the animations, random numbers and pending events, with
+    * the scheduler's current time standing for the checkpoint's. The
+    * scheduler must be new and made for this checkpoint's world.
+    */
+   public void resume(EventScheduler scheduler, ImageStore imageStore)
+   {
+      long now = scheduler.getClock().currentTime();
+      EntityStore entities = this.world.entities;
+      for (int i = 0; i < entities.size(); i++)
+      {
+         long end = this.animationEnd[i] == Long.MAX_VALUE
+                 ? Long.MAX_VALUE : now + this.animationEnd[i];
+         entities.setAnimation(i, now + this.animationStart[i],
+                 this.animationStep[i], end);
+      }
+
+      Entity.setRandomState(this.randomState);
+
+      PendingEvents pending = new PendingEvents();
+      for (int i = 0; i < this.eventEntity.length; i++)
+      {
+         pending.add(entities.view(this.eventEntity[i]),
+                 now + this.eventDelay[i], this.eventSequence[i]);
+      }
+      pending.nextSequence = this.nextSequence;
+      scheduler.restorePending(pending, this.world, imageStore);
+   }
+
+   /*
+      Animations are saved relative to the checkpoint time; those that
+      never end keep Long.MAX_VALUE as their end. A path is written as its
+      length plus one, 0 standing for none yet.
+   */
+   private void writeEntities(DataOutputStream out)
+      throws IOException
+   {
+      EntityStore.Frozen entities = this.capture.entities;
+      for (int i = 0; i < entities.size(); i++)
+      {
+         long end = entities.animationEnd(i);
+         SnapshotFile.writeSignedVarLong(out,
+                 entities.animationStart(i) - this.time);
+         SnapshotFile.writeSignedVarLong(out, entities.animationStep(i));
+         SnapshotFile.writeSignedVarLong(out,
+                 end == Long.MAX_VALUE ? end : end - this.time);
+
+         SnapshotFile.writeSignedVarInt(out, entities.pathTarget(i));
+         SnapshotFile.writeVarInt(out, entities.pathStep(i));
+         SnapshotFile.writeVarInt(out, entities.pathRetry(i));
+         int path[] = entities.path(i);
+         SnapshotFile.writeVarInt(out, path == null ? 0 : path.length + 1);
+         if (path != null)
+         {
+            for (int cell : path)
+            {
+               SnapshotFile.writeVarInt(out, cell);
+            }
+         }
+      }
+   }
+
+   private void readEntities(ByteBuffer in)
+      throws IOException
+   {
+      EntityStore entities = this.world.entities;
+      this.animationStart = new long[entities.size()];
+      this.animationStep = new long[entities.size()];
+      this.animationEnd = new long[entities.size()];
+      for (int i = 0; i < entities.size(); i++)
+      {
+         this.animationStart[i] = SnapshotFile.readSignedVarLong(in);
+         this.animationStep[i] = SnapshotFile.readSignedVarLong(in);
+         this.animationEnd[i] = SnapshotFile.readSignedVarLong(in);
+
+         int pathTarget = SnapshotFile.readSignedVarInt(in);
+         int pathStep = SnapshotFile.readVarInt(in);
+         int pathRetry = SnapshotFile.readVarInt(in);
+         int path[] = null;
+         int length = SnapshotFile.readVarInt(in) - 1;
+         if (length >= 0)
+         {
+            if (length > in.remaining())
+            {
+               throw new IOException("path runs past the end");
+            }
+            path = new int[length];
+            for (int step = 0; step < length; step++)
+            {
+               path[step] = SnapshotFile.readVarInt(in);
+            }
+         }
+         entities.view(i).setPathState(
+                 new StepPlan(0, path, pathStep, pathTarget, pathRetry));
+      }
+   }
+
+   /*
+      Events of entities that have left the world are tombstones that
+      would never run, so they are not kept.
+   */
+   private void writePending(DataOutputStream out)
+      throws IOException
+   {
+      EventPool.Frozen events = this.events;
+      EntityStore.Frozen entities = this.capture.entities;
+      int count = 0;
+      for (int event = 0; event < events.size(); event++)
+      {
+         Entity entity = events.entity(event);
+         if (entity != null && entities.indexOf(entity) >= 0)
+         {
+            count++;
+         }
+      }
+
+      SnapshotFile.writeSignedVarLong(out, events.getNextSequence());
+      SnapshotFile.writeVarInt(out, count);
+      for (int event = 0; event < events.size(); event++)
+      {
+         Entity entity = events.entity(event);
+         int index = entity == null ? -1 : entities.indexOf(entity);
+         if (index >= 0)
+         {
+            SnapshotFile.writeVarInt(out, index);
+            SnapshotFile.writeSignedVarLong(out,
+                    events.time(event) - this.time);
+            SnapshotFile.writeSignedVarLong(out, events.sequence(event));
+         }
+      }
+   }
+
+   private void readPending(ByteBuffer in)
+      throws IOException
+   {
+      this.nextSequence = SnapshotFile.readSignedVarLong(in);
+      int count = SnapshotFile.readVarInt(in);
+      if (count > in.remaining())
+      {
+         throw new IOException("events run past the end of the checkpoint");
+      }
+
+      this.eventEntity = new int[count];
+      this.eventDelay = new long[count];
+      this.eventSequence = new long[count];
+      for (int i = 0; i < count; i++)
+      {
+         this.eventEntity[i] = SnapshotFile.readVarInt(in);
+         this.eventDelay[i] = SnapshotFile.readSignedVarLong(in);
+         this.eventSequence[i] = SnapshotFile.readSignedVarLong(in);
+         if (this.eventEntity[i] >= this.world.entities.size())
+         {
+            throw new IOException("corrupt event");
+         }
+      }
+   }
+}
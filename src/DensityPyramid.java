@@ -0,0 +1,108 @@
+/**
+ * Entity counts by kind over square blocks of the world, for every power
+ * of two block size from 2 cells on a side up to a single block covering
+ * the whole world. Level k holds blocks 2^k cells on a side. Each entity
+ * that enters or leaves a cell updates one block per level, so the
+ * pyramid is always current and reading a block never looks at the
+ * cells under it.
+ */
+public final class DensityPyramid
+{
+   private static final int KINDS = EntityKind.values().length;
+
+   private int levels;
+   private int blockCols[];
+   private int blockRows[];
+
+   /* per level, the entities in each block and how many of each kind */
+   private int totals[][];
+   private int counts[][];
+
+   public DensityPyramid(int numRows, int numCols)
+   {
+      int levels = 1;
+      while ((numCols - 1 >> levels) > 0 || (numRows - 1 >> levels) > 0)
+      {
+         levels++;
+      }
+
+      this.levels = levels;
+      this.blockCols = new int[levels + 1];
+      this.blockRows = new int[levels + 1];
+      this.totals = new int[levels + 1][];
+      this.counts = new int[levels + 1][];
+      for (int level = 1; level <= levels; level++)
+      {
+         this.blockCols[level] = (numCols - 1 >> level) + 1;
+         this.blockRows[level] = (numRows - 1 >> level) + 1;
+         int blocks = this.blockCols[level] * this.blockRows[level];
+         this.totals[level] = new int[blocks];
+         this.counts[level] = new int[blocks * KINDS];
+      }
+   }
+
+   /**
+    * Gets the highest level, whose one block covers the world.
+    */
+   public int getLevels()
+   {
+      return this.levels;
+   }
+
+   public int getBlockCols(int level)
+   {
+      return this.blockCols[level];
+   }
+
+   public int getBlockRows(int level)
+   {
+      return this.blockRows[level];
+   }
+
+   /**
+    * Counts an entity of the given kind entering (delta 1) or leaving
+    * (delta -1) the cell (x, y).
+    */
+   public void add(int x, int y, EntityKind kind, int delta)
+   {
+      for (int level = 1; level <= this.levels; level++)
+      {
+         int block = (y >> level) * this.blockCols[level] + (x >> level);
+         this.totals[level][block] += delta;
+         this.counts[level][block * KINDS + kind.ordinal()] += delta;
+      }
+   }
+
+   /**
+    * Gets the number of entities in the given block of the given level.
+    */
+   public int count(int level, int blockCol, int blockRow)
+   {
+      return this.totals[level][blockRow * this.blockCols[level] + blockCol];
+   }
+
+   /**
+    * Gets the ordinal of the kind with the most entities in the given
+    * block, the lowest on a tie, or -1 for an empty block.
+    */
+   public int dominantKind(int level, int blockCol, int blockRow)
+   {
+      int block = blockRow * this.blockCols[level] + blockCol;
+      if (this.totals[level][block] == 0)
+      {
+         return -1;
+      }
+
+      int base = block * KINDS;
+      int best = 0;
+      for (int kind = 1; kind < KINDS; kind++)
+      {
+         if (this.counts[level][base + kind] >
+                 this.counts[level][base + best])
+         {
+            best = kind;
+         }
+      }
+      return best;
+   }
+}
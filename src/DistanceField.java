@@ -0,0 +1,212 @@
+import java.util.Arrays;
+
+/**
+ * Breadth-first distance, in steps, from every cell of the grid to the
+ * nearest source cell, moving between the four neighbors of a cell
+ * and never through blocked cells.
+ *
+ * Cells only change here when a static entity (a source or a blocker)
+ * comes or goes; moving entities are stepped around by whoever reads
+ * the field. Opening a cell or adding a source only lowers distances,
+ * so those are propagated in place from the changed cell. Anything
+ * that can raise distances marks the field for a full rebuild on the
+ * next read.
+ */
+public final class DistanceField
+{
+   public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+   public static final byte OPEN = 0;
+   public static final byte BLOCKED = 1;
+   public static final byte SOURCE = 2;
+
+   // horizontal moves first, as the greedy miner step does
+   private static final int NEIGHBOR_DX[] = {-1, 1, 0, 0};
+   private static final int NEIGHBOR_DY[] = {0, 0, -1, 1};
+
+   private int numRows;
+   private int numCols;
+   private byte state[];
+   private int distance[];
+   private int queue[];
+   private boolean stale;
+
+   public DistanceField(int numRows, int numCols)
+   {
+      this.numRows = numRows;
+      this.numCols = numCols;
+      this.state = new byte[numRows * numCols];
+      this.distance = new int[numRows * numCols];
+      this.queue = new int[numRows * numCols];
+      this.stale = true;
+   }
+
+   /**
+    * Sets the cell at (x, y) to OPEN, BLOCKED or SOURCE.
+    */
+   public void setCell(int x, int y, byte cellState)
+   {
+      int cell = y * this.numCols + x;
+      byte old = this.state[cell];
+      this.state[cell] = cellState;
+
+      if (this.stale || old == cellState)
+      {
+         return;
+      }
+
+      if (cellState == SOURCE)
+      {
+         this.distance[cell] = 0;
+         propagate(cell);
+      }
+      else if (cellState == OPEN && old == BLOCKED)
+      {
+         this.distance[cell] = nearestNeighbor(cell);
+         if (this.distance[cell] != UNREACHABLE)
+         {
+            this.distance[cell]++;
+            propagate(cell);
+         }
+      }
+      else
+      {
+         this.stale = true;
+      }
+   }
+
+   /**
+    * Gets the number of steps from (x, y) to the nearest source, or
+    * UNREACHABLE.
+    */
+   public int distance(int x, int y)
+   {
+      refresh();
+      return this.distance[y * this.numCols + x];
+   }
+
+   /**
+    * Finds the neighbor of (x, y) that is closest to a source, closer
+    * than (x, y) itself, and not taken according to the occupancy
+    * bitmap of the world. Returns the cell as row * numCols + col, or
+    * -1 if no neighbor gets closer.
+    */
+   public int nextStep(int x, int y, WorldModel world)
+   {
+      refresh();
+
+      int best = -1;
+      int bestDistance = this.distance[y * this.numCols + x];
+
+      for (int i = 0; i < NEIGHBOR_DX.length; i++)
+      {
+         int nx = x + NEIGHBOR_DX[i];
+         int ny = y + NEIGHBOR_DY[i];
+         if (nx < 0 || nx >= this.numCols || ny < 0 || ny >= this.numRows ||
+                 world.isOccupied(nx, ny))
+         {
+            continue;
+         }
+
+         int cell = ny * this.numCols + nx;
+         if (this.distance[cell] < bestDistance)
+         {
+            best = cell;
+            bestDistance = this.distance[cell];
+         }
+      }
+
+      return best;
+   }
+
+   private void refresh()
+   {
+      if (!this.stale)
+      {
+         return;
+      }
+
+      Arrays.fill(this.distance, UNREACHABLE);
+      int tail = 0;
+      for (int cell = 0; cell < this.state.length; cell++)
+      {
+         if (this.state[cell] == SOURCE)
+         {
+            this.distance[cell] = 0;
+            this.queue[tail++] = cell;
+         }
+      }
+      relax(tail);
+      this.stale = false;
+   }
+
+   private void propagate(int cell)
+   {
+      this.queue[0] = cell;
+      relax(1);
+   }
+
+   /*
+      Breadth-first relaxation from the cells already in the queue.
+      With unit steps the first improvement to reach a cell is final,
+      so a cell is queued at most once per call.
+   */
+   private void relax(int tail)
+   {
+      int head = 0;
+      int size = tail;
+
+      while (size > 0)
+      {
+         int cell = this.queue[head];
+         head = (head + 1) % this.queue.length;
+         size--;
+
+         int x = cell % this.numCols;
+         int y = cell / this.numCols;
+         int next = this.distance[cell] + 1;
+
+         for (int i = 0; i < NEIGHBOR_DX.length; i++)
+         {
+            int nx = x + NEIGHBOR_DX[i];
+            int ny = y + NEIGHBOR_DY[i];
+            if (nx < 0 || nx >= this.numCols || ny < 0 || ny >= this.numRows)
+            {
+               continue;
+            }
+
+            int neighbor = ny * this.numCols + nx;
+            if (this.state[neighbor] == OPEN && next < this.distance[neighbor])
+            {
+               this.distance[neighbor] = next;
+               this.queue[tail] = neighbor;
+               tail = (tail + 1) % this.queue.length;
+               size++;
+            }
+         }
+      }
+   }
+
+   private int nearestNeighbor(int cell)
+   {
+      int x = cell % this.numCols;
+      int y = cell / this.numCols;
+      int nearest = UNREACHABLE;
+
+      for (int i = 0; i < NEIGHBOR_DX.length; i++)
+      {
+         int nx = x + NEIGHBOR_DX[i];
+         int ny = y + NEIGHBOR_DY[i];
+         if (nx >= 0 && nx < this.numCols && ny >= 0 && ny < this.numRows)
+         {
+            int neighbor = ny * this.numCols + nx;
+            if (this.state[neighbor] != BLOCKED)
+            {
+               nearest = Math.min(nearest, this.distance[neighbor]);
+            }
+         }
+      }
+
+      return nearest;
+   }
+}
@@ -1,100 +1,278 @@
-import java.util.List;
 import java.util.Optional;
-import java.util.Random;
 
-import processing.core.PImage;
 
 public final class Entity
 {
-   public EntityKind kind;
-   private String id;
-   public Point position;
-   public List<PImage> images;
-   public int imageIndex;
-   private int resourceLimit;
-   private int resourceCount;
-   public int actionPeriod;
-   private int animationPeriod;
-
-   private  final String BLOB_KEY = "blob";
-   private  final String BLOB_ID_SUFFIX = " -- blob";
-   private  final int BLOB_PERIOD_SCALE = 4;
-   private  final int BLOB_ANIMATION_MIN = 50;
-   private  final int BLOB_ANIMATION_MAX = 150;
-
-   private  final Random rand = new Random();
-
-   private  final String QUAKE_KEY = "quake";
+   /* the entity's data lives in the store; this is a view of one slot */
+   private EntityStore store;
+   private int slot;
+   private int generation;
+
+   private Action activityAction;
+
+   /* id the scheduler's event pool knows this entity by, if any */
+   public int schedulerId = EventPool.NONE;
+
+   /* a step planned ahead of the entity's next activity, if any */
+   private StepPlan plan;
+
+   private static final String BLOB_KEY = "blob";
+   private static final String BLOB_ID_SUFFIX = " -- blob";
+   private static final int BLOB_PERIOD_SCALE = 4;
+   private static final int BLOB_ANIMATION_MIN = 50;
+   private static final int BLOB_ANIMATION_MAX = 150;
+
+   /* the random numbers behind ore and blob timings: the 48-bit state
+      of the generator java.util.Random uses, kept as a long so that a
+      Checkpoint can save it as one */
+   private static final long RANDOM_MULTIPLIER = 0x5DEECE66DL;
+   private static final long RANDOM_ADDEND = 0xBL;
+   private static final long RANDOM_MASK = (1L << 48) - 1;
+   private static long randomState = scramble(System.nanoTime());
+
+   private static final String QUAKE_KEY = "quake";
    public  static final String ORE_KEY = "ore";
 
 
-   private  final String ORE_ID_PREFIX = "ore -- ";
-   private  final int ORE_CORRUPT_MIN = 20000;
-   private  final int ORE_CORRUPT_MAX = 30000;
+   private static final String ORE_ID_PREFIX = "ore -- ";
+   private static final int ORE_CORRUPT_MIN = 20000;
+   private static final int ORE_CORRUPT_MAX = 30000;
 
+   private static final Point REMOVED_POSITION = new Point(-1, -1);
 
-   public Entity(EntityKind kind, String id, Point position,
-      List<PImage> images, int resourceLimit, int resourceCount,
-      int actionPeriod, int animationPeriod)
+   /* activity periods to wait before searching again after no path */
+   private static final int PATH_RETRY_PERIODS = 4;
+
+
+   public Entity(EntityStore store, EntityKind kind, String id,
+      Point position, int sprite, int resourceLimit,
+      int resourceCount, int actionPeriod, int animationPeriod)
+   {
+      this.store = store;
+      this.slot = store.allocate(this, kind, id, position, sprite,
+              resourceLimit, resourceCount, actionPeriod, animationPeriod);
+      this.generation = store.generation(this.slot);
+   }
+
+   /**
+    * Seeds the random numbers behind ore and blob timings, so that a run
+    * can be repeated.
+    */
+   public static void setSeed(long seed)
+   {
+      randomState = scramble(seed);
+   }
+
+   /**
+    * Gets the state of the random numbers behind ore and blob timings,
+    * which a Checkpoint saves.
+    */
+   public static long getRandomState()
+   {
+      return randomState;
+   }
+
+   public static void setRandomState(long state)
+   {
+      randomState = state & RANDOM_MASK;
+   }
+
+   private static long scramble(long seed)
+   {
+      return (seed ^ RANDOM_MULTIPLIER) & RANDOM_MASK;
+   }
+
+   /*
+      Draws from [0, bound) the way java.util.Random.nextInt(bound) does,
+      so a seed gives the same numbers it always has. Only called while
+      events commit, one at a time.
+   */
+   private static int nextRandom(int bound)
+   {
+      int r = nextRandomBits();
+      int m = bound - 1;
+      if ((bound & m) == 0)
+      {
+         return (int)((bound * (long)r) >> 31);
+      }
+      // redraw the few values that would favour the low numbers
+      int u = r;
+      while (u - (r = u % bound) + m < 0)
+      {
+         u = nextRandomBits();
+      }
+      return r;
+   }
+
+   private static int nextRandomBits()
+   {
+      randomState = (randomState * RANDOM_MULTIPLIER + RANDOM_ADDEND) &
+              RANDOM_MASK;
+      return (int)(randomState >>> 17);
+   }
+
+   public int getSlot()
+   {
+      return this.slot;
+   }
+
+   public int getGeneration()
+   {
+      return this.generation;
+   }
+
+   /**
+    * Checks if the entity's data is still in the store, that is, it has
+    * not been removed from the world.
+    */
+   public boolean isAlive()
+   {
+      return this.store.isAlive(this.slot, this.generation);
+   }
+
+   private int dense()
+   {
+      return this.store.dense(this.slot, this.generation);
+   }
+
+   /**
+    * Gets where the entity's data sits in the store's dense columns.
+    * This moves whenever another entity is removed, so it is only good
+    * until the world next changes.
+    */
+   public int getStoreIndex()
+   {
+      return dense();
+   }
+
+   public EntityKind getKind()
    {
-      this.kind = kind;
-      this.id = id;
-      this.position = position;
-      this.images = images;
-      this.imageIndex = 0;
-      this.resourceLimit = resourceLimit;
-      this.resourceCount = resourceCount;
-      this.actionPeriod = actionPeriod;
-      this.animationPeriod = animationPeriod;
+      return this.store.kind(dense());
+   }
+
+   public String getId()
+   {
+      return this.store.id(dense());
+   }
+
+   /**
+    * Gets the entity's position; removed entities sit at (-1, -1).
+    */
+   public Point getPosition()
+   {
+      if (!isAlive())
+      {
+         return REMOVED_POSITION;
+      }
+      int dense = dense();
+      return new Point(this.store.x(dense), this.store.y(dense));
+   }
+
+   public int getX()
+   {
+      return this.store.x(dense());
+   }
+
+   public int getY()
+   {
+      return this.store.y(dense());
+   }
+
+   public int getSprite()
+   {
+      return this.store.sprite(dense());
+   }
+
+   public int getActionPeriod()
+   {
+      return this.store.actionPeriod(dense());
+   }
+
+   private int getResourceLimit()
+   {
+      return this.store.resourceLimit(dense());
+   }
+
+   private int getResourceCount()
+   {
+      return this.store.resourceCount(dense());
    }
 
    public void executeMinerFullActivity(WorldModel world,
                                                ImageStore imageStore, EventScheduler scheduler)
    {
-      Optional<Entity> fullTarget = world.findNearest(this.position,
-              EntityKind.BLACKSMITH);
+      int distance = world.distanceToBlacksmith(getX(), getY());
 
-      if (fullTarget.isPresent() &&
-              moveToFull(world, fullTarget.get(), scheduler))
+      if (distance == DistanceField.UNREACHABLE)
+      {
+         // walled off from every blacksmith, so head for the nearest
+         Optional<Entity> fullTarget = world.findNearest(getPosition(),
+                 EntityKind.BLACKSMITH);
+         if (fullTarget.isPresent() &&
+                 moveToFull(world, fullTarget.get(), scheduler))
+         {
+            transformFull(world, scheduler, imageStore);
+            return;
+         }
+      }
+      else if (distance == 1)
       {
          transformFull(world, scheduler, imageStore);
+         return;
       }
       else
       {
-         scheduler.scheduleEvent(this,
-                 Functions.createActivityAction(this, world, imageStore),
-                 this.actionPeriod);
+         int next = world.nextStepToBlacksmith(getX(), getY());
+         if (next >= 0)
+         {
+            moveEntity(world, new Point(next % world.numCols,
+                    next / world.numCols));
+         }
       }
+
+      scheduler.scheduleEvent(this, getActionPeriod());
    }
 
    public void executeMinerNotFullActivity(WorldModel world, ImageStore imageStore, EventScheduler scheduler)
    {
-      Optional<Entity> notFullTarget = world.findNearest(this.position,
-              EntityKind.ORE);
+      applyMinerNotFullStep(world, imageStore, scheduler, takePlan(world));
+   }
+
+   /**
+    * Carries out a planned step of a miner seeking ore. The step may
+    * have been planned before other entities moved, so a target that
+    * is gone or a cell that has been taken leaves the miner waiting.
+    */
+   public void applyMinerNotFullStep(WorldModel world,
+      ImageStore imageStore, EventScheduler scheduler, StepPlan step)
+   {
+      keepPath(step);
 
-      if (!notFullTarget.isPresent() ||
-              !moveToNotFull(world, notFullTarget.get(), scheduler) ||
+      if (step.target == null || !step.target.isAlive() ||
+              !moveToNotFull(world, step.target, step.nextPos, scheduler) ||
               !transformNotFull(world, scheduler, imageStore))
       {
-         scheduler.scheduleEvent(this,
-                 Functions.createActivityAction(this, world, imageStore),
-                 this.actionPeriod);
+         scheduler.scheduleEvent(this, getActionPeriod());
       }
    }
 
    public void executeOreActivity(WorldModel world,
                                          ImageStore imageStore, EventScheduler scheduler)
    {
-      Point pos = this.position;  // store current position before removing
+      // read what the blob needs before removing, which frees the data
+      Point pos = getPosition();
+      String id = getId();
+      int actionPeriod = getActionPeriod();
 
       this.removeEntity(world);
       scheduler.unscheduleAllEvents(this);
 
-      Entity blob = Functions.createOreBlob(this.id + BLOB_ID_SUFFIX,
-              pos, this.actionPeriod / BLOB_PERIOD_SCALE,
+      Entity blob = Functions.createOreBlob(world.entities,
+              id + BLOB_ID_SUFFIX,
+              pos, actionPeriod / BLOB_PERIOD_SCALE,
               BLOB_ANIMATION_MIN +
-                      rand.nextInt(BLOB_ANIMATION_MAX - BLOB_ANIMATION_MIN),
-              imageStore.getImageList(BLOB_KEY));
+                      nextRandom(BLOB_ANIMATION_MAX - BLOB_ANIMATION_MIN),
+              imageStore.getSprite(BLOB_KEY));
 
       blob.addEntity(world);
       scheduler.scheduleActions(blob, world, imageStore);
@@ -103,27 +281,35 @@ public final class Entity
    public void executeOreBlobActivity(WorldModel world,
                                              ImageStore imageStore, EventScheduler scheduler)
    {
-      Optional<Entity> blobTarget = world.findNearest(this.position, EntityKind.VEIN);
-      long nextPeriod = this.actionPeriod;
+      applyOreBlobStep(world, imageStore, scheduler, takePlan(world));
+   }
+
+   /**
+    * Carries out a planned step of an ore blob seeking a vein, under
+    * the same rules as applyMinerNotFullStep.
+    */
+   public void applyOreBlobStep(WorldModel world, ImageStore imageStore,
+      EventScheduler scheduler, StepPlan step)
+   {
+      keepPath(step);
+      long nextPeriod = getActionPeriod();
 
-      if (blobTarget.isPresent())
+      if (step.target != null && step.target.isAlive())
       {
-         Point tgtPos = blobTarget.get().position;
+         Point tgtPos = step.target.getPosition();
 
-         if (moveToOreBlob(world, blobTarget.get(), scheduler))
+         if (moveToOreBlob(world, step.target, step.nextPos, scheduler))
          {
-            Entity quake = Functions.createQuake(tgtPos,
-                    imageStore.getImageList(QUAKE_KEY));
+            Entity quake = Functions.createQuake(world.entities, tgtPos,
+                    imageStore.getSprite(QUAKE_KEY));
 
             quake.addEntity(world);
-            nextPeriod += this.actionPeriod;
+            nextPeriod += getActionPeriod();
             scheduler.scheduleActions(quake, world, imageStore);
          }
       }
 
-      scheduler.scheduleEvent(this,
-              Functions.createActivityAction(this, world, imageStore),
-              nextPeriod);
+      scheduler.scheduleEvent(this, nextPeriod);
    }
    public void executeQuakeActivity(WorldModel world,
                                            ImageStore imageStore, EventScheduler scheduler)
@@ -135,30 +321,90 @@ public final class Entity
    public void executeVeinActivity(WorldModel world,
                                           ImageStore imageStore, EventScheduler scheduler)
    {
-      Optional<Point> openPt = world.findOpenAround(this.position);
+      applyVeinSpawn(world, imageStore, scheduler,
+              world.findOpenAround(getPosition()));
+   }
 
-      if (openPt.isPresent())
+   /**
+    * Spawns ore at a cell found beside the vein, unless the cell has
+    * been taken since it was found.
+    */
+   public void applyVeinSpawn(WorldModel world, ImageStore imageStore,
+      EventScheduler scheduler, Optional<Point> openPt)
+   {
+      if (openPt.isPresent() && !world.isOccupied(openPt.get()))
       {
-         Entity ore = Functions.createOre(ORE_ID_PREFIX + this.id,
+         Entity ore = Functions.createOre(world.entities,
+                 ORE_ID_PREFIX + getId(),
                  openPt.get(), ORE_CORRUPT_MIN +
-                         rand.nextInt(ORE_CORRUPT_MAX - ORE_CORRUPT_MIN),
-                 imageStore.getImageList(ORE_KEY));
+                         nextRandom(ORE_CORRUPT_MAX - ORE_CORRUPT_MIN),
+                 imageStore.getSprite(ORE_KEY));
          ore.addEntity(world);
          scheduler.scheduleActions(ore, world, imageStore);
       }
 
-      scheduler.scheduleEvent(this,
-              Functions.createActivityAction(this, world, imageStore),
-              this.actionPeriod);
+      scheduler.scheduleEvent(this, getActionPeriod());
    }
 
    /**
-    * Gets the next image associated with the specified entity,
-    * by updating the entity's imageIndex.
+    * Makes the entity's activity action, which every event it schedules
+    * runs, unless it already has one.
     */
-   public void nextImage()
+   public void makeActivityAction(WorldModel world, ImageStore imageStore)
    {
-      this.imageIndex = (this.imageIndex + 1) % this.images.size();
+      if (this.activityAction == null)
+      {
+         this.activityAction = Functions.createActivityAction(this, world,
+                 imageStore);
+      }
+   }
+
+   /**
+    * Gets the action this entity has scheduled. Animation runs off the
+    * clock, so the activity action is the only one an entity has.
+    */
+   public Action getAction()
+   {
+      return this.activityAction;
+   }
+
+   /**
+    * Starts animating at the given time, advancing one frame every
+    * step. A finite repeat count stops the animation on its last frame.
+    */
+   public void startAnimation(long start, long step, int repeatCount)
+   {
+      this.store.setAnimation(dense(), start, step,
+              repeatCount > 0 ? start + repeatCount * step : Long.MAX_VALUE);
+   }
+
+   /**
+    * Gets the index of the frame of the entity's sprite to show at the
+    * given time.
+    */
+   public int getImageIndex(SpriteAtlas atlas, long time)
+   {
+      int dense = dense();
+      return imageIndex(atlas.getFrameCount(this.store.sprite(dense)),
+              this.store.animationStart(dense),
+              this.store.animationStep(dense),
+              this.store.animationEnd(dense), time);
+   }
+
+   /**
+    * Gets the frame shown at the given time by an animation of the
+    * given number of frames, started at start and stopped at end.
+    */
+   public static int imageIndex(int frames, long start, long step,
+      long end, long time)
+   {
+      long now = Math.min(time, end);
+      if (step <= 0 || now <= start)
+      {
+         return 0;
+      }
+
+      return (int)(((now - start) / step) % frames);
    }
 
    /**
@@ -166,17 +412,17 @@ public final class Entity
     */
    public int getAnimationPeriod()
    {
-      switch (this.kind)
+      switch (getKind())
       {
          case MINER_FULL:
          case MINER_NOT_FULL:
          case ORE_BLOB:
          case QUAKE:
-            return this.animationPeriod;
+            return this.store.animationPeriod(dense());
          default:
             throw new UnsupportedOperationException(
                     String.format("getAnimationPeriod not supported for %s",
-                            this.kind));
+                            getKind()));
       }
    }
 
@@ -184,15 +430,15 @@ public final class Entity
    public  boolean moveToFull(WorldModel world,
                                     Entity target, EventScheduler scheduler)
    {
-      if (position.adjacent(this.position, target.position))
+      if (Point.adjacent(getPosition(), target.getPosition()))
       {
          return true;
       }
       else
       {
-         Point nextPos = nextPositionMiner(world, target.position);
+         Point nextPos = nextPositionMiner(world, target.getPosition());
 
-         if (!this.position.equals(nextPos))
+         if (!getPosition().equals(nextPos))
          {
             Optional<Entity> occupant = world.getOccupant(nextPos);
             if (occupant.isPresent())
@@ -208,9 +454,9 @@ public final class Entity
    public void transformFull(WorldModel world,
                                     EventScheduler scheduler, ImageStore imageStore)
    {
-      Entity miner = Functions.createMinerNotFull(this.id, this.resourceLimit,
-              this.position, this.actionPeriod, this.animationPeriod,
-              this.images);
+      Entity miner = Functions.createMinerNotFull(world.entities, getId(),
+              getResourceLimit(), getPosition(), getActionPeriod(),
+              this.store.animationPeriod(dense()), getSprite());
 
       this.removeEntity(world);
       scheduler.unscheduleAllEvents(this);
@@ -220,11 +466,11 @@ public final class Entity
    }
 
    public boolean moveToNotFull(WorldModel world,
-                                       Entity target, EventScheduler scheduler)
+                                       Entity target, Point nextPos, EventScheduler scheduler)
    {
-      if (position.adjacent(this.position, target.position))
+      if (Point.adjacent(getPosition(), target.getPosition()))
       {
-         this.resourceCount += 1;
+         this.store.setResourceCount(dense(), getResourceCount() + 1);
          target.removeEntity(world);
          scheduler.unscheduleAllEvents(target);
 
@@ -232,9 +478,8 @@ public final class Entity
       }
       else
       {
-         Point nextPos = this.nextPositionMiner(world, target.position);
-
-         if (!this.position.equals(nextPos))
+         if (!getPosition().equals(nextPos) &&
+                 world.getPathFinder().canEnter(nextPos.x, nextPos.y, false))
          {
             Optional<Entity> occupant = world.getOccupant(nextPos);
             if (occupant.isPresent())
@@ -251,11 +496,11 @@ public final class Entity
    public  boolean transformNotFull(WorldModel world,
                                           EventScheduler scheduler, ImageStore imageStore)
    {
-      if (this.resourceCount >= this.resourceLimit)
+      if (getResourceCount() >= getResourceLimit())
       {
-         Entity miner = Functions.createMinerFull(this.id, this.resourceLimit,
-                 this.position, this.actionPeriod, this.animationPeriod,
-                 this.images);
+         Entity miner = Functions.createMinerFull(world.entities, getId(),
+                 getResourceLimit(), getPosition(), getActionPeriod(),
+                 this.store.animationPeriod(dense()), getSprite());
 
          this.removeEntity(world);
          scheduler.unscheduleAllEvents(this);
@@ -270,9 +515,9 @@ public final class Entity
    }
 
    public boolean moveToOreBlob(WorldModel world,
-                                       Entity target, EventScheduler scheduler)
+                                       Entity target, Point nextPos, EventScheduler scheduler)
    {
-      if (position.adjacent(this.position, target.position))
+      if (Point.adjacent(getPosition(), target.getPosition()))
       {
          target.removeEntity(world);
          scheduler.unscheduleAllEvents(target);
@@ -280,9 +525,8 @@ public final class Entity
       }
       else
       {
-         Point nextPos = nextPositionOreBlob(world, target.position);
-
-         if (!this.position.equals(nextPos))
+         if (!getPosition().equals(nextPos) &&
+                 world.getPathFinder().canEnter(nextPos.x, nextPos.y, true))
          {
             Optional<Entity> occupant = world.getOccupant(nextPos);
             if (occupant.isPresent())
@@ -302,34 +546,24 @@ public final class Entity
    public  Point nextPositionMiner(WorldModel world,
                                          Point destPos)
    {
-      int horiz = Integer.signum(destPos.x - this.position.x);
-      Point newPos = new Point(this.position.x + horiz,
-              this.position.y);
-
-      if (horiz == 0 || world.isOccupied(newPos))
-      {
-         int vert = Integer.signum(destPos.y - this.position.y);
-         newPos = new Point(this.position.x,
-                 this.position.y + vert);
-
-         if (vert == 0 || world.isOccupied(newPos))
-         {
-            newPos = this.position;
-         }
-      }
-
-      return newPos;
+      StepPlan step = pathState(world.getMutationCount());
+      Point nextPos = nextPosition(world, world.getPathFinder(), destPos,
+              false, step);
+      keepPath(step);
+      return nextPos;
    }
    public  void moveEntity(WorldModel Model, Point pos)
    {
-      Point oldPos = this.position;
-      if (Model.withinBounds(pos) && !pos.equals(oldPos))
-      {
-         Model.setOccupancyCell(oldPos, null);
-         Model.removeEntityAt(pos);
-         Model.setOccupancyCell(pos, this);
-         this.position = pos;
-      }
+      Model.moveEntity(this, pos);
+   }
+
+   /**
+    * Records the entity's new position; WorldModel.moveEntity keeps
+    * the grid and indexes in step.
+    */
+   public void setPosition(Point pos)
+   {
+      this.store.setPosition(dense(), pos.x, pos.y);
    }
 
    /*
@@ -338,50 +572,178 @@ public final class Entity
 */
    public void addEntity(WorldModel model)
    {
-      if (model.withinBounds(this.position))
-      {
-         model.setOccupancyCell(this.position, this);
-         model.entities.add(this);
-      }
+      model.addEntity(this);
    }
    public void removeEntity(WorldModel m)
    {
-      m.removeEntityAt(this.position);
+      m.removeEntityAt(getPosition());
+   }
+
+   /**
+    * Works out the next step of a miner seeking ore or an ore blob
+    * seeking a vein. This reads the world without changing it or the
+    * entity, so it may run on any thread while no events are being
+    * dispatched.
+    */
+   public StepPlan planStep(WorldModel world, PathFinder finder)
+   {
+      boolean blob = getKind() == EntityKind.ORE_BLOB;
+      StepPlan step = pathState(world.getMutationCount());
+
+      Point pos = getPosition();
+      Optional<Entity> target = world.findNearest(pos,
+              blob ? EntityKind.VEIN : EntityKind.ORE);
+      if (!target.isPresent())
+      {
+         step.readRadius = StepPlan.WHOLE_WORLD;
+         return step;
+      }
+
+      // nothing farther away than the target can have been nearer
+      step.target = target.get();
+      Point targetPos = step.target.getPosition();
+      step.readRadius = (int)Math.ceil(
+              Math.sqrt(world.distanceSquared(pos, targetPos)));
+
+      if (!Point.adjacent(pos, targetPos))
+      {
+         step.nextPos = nextPosition(world, finder, targetPos, blob, step);
+      }
+      return step;
    }
 
    /**
-    * Gets the ore blob entity's next position.
+    * Hands the entity a step planned ahead of its next activity.
     */
-   public Point nextPositionOreBlob(WorldModel world,
-                                           Point destPos)
+   public void setPlan(StepPlan plan)
    {
-      int horiz = Integer.signum(destPos.x - this.position.x);
-      Point newPos = new Point(this.position.x + horiz,
-              this.position.y);
+      this.plan = plan;
+   }
 
-      Optional<Entity> occupant = world.getOccupant(newPos);
+   public void setPathState(StepPlan step)
+   {
+      keepPath(step);
+   }
 
-      if (horiz == 0 ||
-              (occupant.isPresent() && !(occupant.get().kind == EntityKind.ORE)))
+   /*
+      Uses the step planned ahead if nothing it read has changed since,
+      and plans it now otherwise, so the outcome is the same either way.
+   */
+   private StepPlan takePlan(WorldModel world)
+   {
+      StepPlan step = this.plan;
+      this.plan = null;
+
+      if (step == null || !world.unchangedSince(getX(), getY(),
+              step.readRadius, step.mutationCount))
       {
-         int vert = Integer.signum(destPos.y - this.position.y);
-         newPos = new Point(this.position.x, this.position.y + vert);
-         occupant = world.getOccupant(newPos);
+         step = planStep(world, world.getPathFinder());
+      }
+      return step;
+   }
+
+   /*
+      The path being followed toward the cell beside pathTarget is kept
+      in the store, as a step that has not moved yet.
+   */
+   private StepPlan pathState(long mutationCount)
+   {
+      int dense = dense();
+      return new StepPlan(mutationCount, this.store.path(dense),
+              this.store.pathStep(dense), this.store.pathTarget(dense),
+              this.store.pathRetry(dense));
+   }
+
+   private void keepPath(StepPlan step)
+   {
+      this.store.setPath(dense(), step.path, step.pathStep, step.pathTarget,
+              step.pathRetry);
+   }
 
-         if (vert == 0 ||
-                 (occupant.isPresent() && !(occupant.get().kind == EntityKind.ORE)))
+   /*
+      Follows the path toward the cell beside destPos, or failing that
+      takes one greedy step, horizontal first. Ore blobs can move onto
+      ore as well as into empty cells.
+   */
+   private Point nextPosition(WorldModel world, PathFinder finder,
+                              Point destPos, boolean overOre, StepPlan step)
+   {
+      step.readRadius = Math.max(step.readRadius, 1);
+
+      int next = nextPathStep(world, finder, destPos, overOre, step);
+      if (next >= 0)
+      {
+         return new Point(next % world.numCols, next / world.numCols);
+      }
+
+      int x = getX();
+      int y = getY();
+
+      int horiz = Integer.signum(destPos.x - x);
+      if (horiz != 0 && finder.canEnter(x + horiz, y, overOre))
+      {
+         return new Point(x + horiz, y);
+      }
+
+      int vert = Integer.signum(destPos.y - y);
+      if (vert != 0 && finder.canEnter(x, y + vert, overOre))
+      {
+         return new Point(x, y + vert);
+      }
+
+      return getPosition();
+   }
+
+   /*
+      Advances along the cached path toward the cell beside destPos,
+      searching again only when the target moves or the next cell of
+      the path has been taken. Returns the cell to step onto, or -1 to
+      fall back to a greedy step, as after a search that found no way.
+   */
+   private int nextPathStep(WorldModel world, PathFinder finder,
+                            Point destPos, boolean overOre, StepPlan step)
+   {
+      int target = destPos.y * world.numCols + destPos.x;
+
+      if (target != step.pathTarget || step.pathStep >= step.path.length ||
+              !nextToSelf(world, step.path[step.pathStep]) ||
+              !finder.canEnter(step.path[step.pathStep] % world.numCols,
+                      step.path[step.pathStep] / world.numCols, overOre))
+      {
+         if (target == step.pathTarget && step.pathRetry > 0)
+         {
+            step.pathRetry--;
+            return -1;
+         }
+
+         step.path = finder.findPath(getX(), getY(), destPos.x, destPos.y,
+                 overOre);
+         step.pathStep = 0;
+         step.pathTarget = target;
+         step.readRadius = Math.max(step.readRadius, finder.getReach());
+         if (step.path.length == 0)
          {
-            newPos = this.position;
+            step.pathRetry = PATH_RETRY_PERIODS;
+            return -1;
          }
       }
 
-      return newPos;
+      return step.path[step.pathStep++];
+   }
+
+   private boolean nextToSelf(WorldModel world, int cell)
+   {
+      return Math.abs(cell % world.numCols - getX()) +
+              Math.abs(cell / world.numCols - getY()) == 1;
    }
 
    public void tryAddEntity(WorldModel world)
    {
-      if (world.isOccupied(this.position))
+      if (world.isOccupied(getPosition()))
       {
+         // the entity will never be added, so give back its data
+         this.store.free(this.slot);
+
          // arguably the wrong type of exception, but we are not
          // defining our own exceptions yet
          throw new IllegalArgumentException("position occupied");
@@ -0,0 +1,628 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Table of entity data kept as parallel arrays. Entity objects are thin
+ * views that hold a slot number and the generation of that slot; the
+ * slot maps to a dense index into the arrays.
+ *
+ * Dense indices [0, size()) hold the entities that are in the world, in
+ * a stable order that iteration follows. Entities that have been created
+ * but not yet added sit after them. Removing an entity swaps the last
+ * one into its place, so removal is O(1), and bumps the slot's
+ * generation so that stale views can be detected.
+ *
+ * freeze() hands another thread the table as it stands without copying
+ * it; every write goes through beforeWrite, which saves a page of rows
+ * for a freeze still being read the first time it is written.
+ */
+public final class EntityStore
+   implements Iterable<Entity>
+{
+   private static final int INITIAL_CAPACITY = 64;
+   private static final EntityKind KINDS[] = EntityKind.values();
+
+   /* dense columns */
+   private byte kind[];
+   private int x[];
+   private int y[];
+   private int resourceLimit[];
+   private int resourceCount[];
+   private int actionPeriod[];
+   private int animationPeriod[];
+   private long animationStart[];
+   private long animationStep[];
+   private long animationEnd[];
+   private String id[];
+   private int sprite[];
+   private Entity view[];
+   private int slotOf[];
+
+   /* the path being followed toward the cell beside pathTarget */
+   private int path[][];
+   private int pathStep[];
+   private int pathTarget[];
+   private int pathRetry[];
+
+   /* slot columns */
+   private int denseOf[];
+   private int generation[];
+   private int nextFreeSlot[];
+   private int freeSlot;
+   private int slotLimit;
+
+   private int live;
+   private int count;
+
+   /* the latest freezes of the dense and slot columns still held */
+   private FrozenColumns frozenDense;
+   private FrozenColumns frozenSlots;
+
+   public EntityStore()
+   {
+      this.kind = new byte[INITIAL_CAPACITY];
+      this.x = new int[INITIAL_CAPACITY];
+      this.y = new int[INITIAL_CAPACITY];
+      this.resourceLimit = new int[INITIAL_CAPACITY];
+      this.resourceCount = new int[INITIAL_CAPACITY];
+      this.actionPeriod = new int[INITIAL_CAPACITY];
+      this.animationPeriod = new int[INITIAL_CAPACITY];
+      this.animationStart = new long[INITIAL_CAPACITY];
+      this.animationStep = new long[INITIAL_CAPACITY];
+      this.animationEnd = new long[INITIAL_CAPACITY];
+      this.id = new String[INITIAL_CAPACITY];
+      this.sprite = new int[INITIAL_CAPACITY];
+      this.view = new Entity[INITIAL_CAPACITY];
+      this.slotOf = new int[INITIAL_CAPACITY];
+      this.path = new int[INITIAL_CAPACITY][];
+      this.pathStep = new int[INITIAL_CAPACITY];
+      this.pathTarget = new int[INITIAL_CAPACITY];
+      this.pathRetry = new int[INITIAL_CAPACITY];
+
+      this.denseOf = new int[INITIAL_CAPACITY];
+      this.generation = new int[INITIAL_CAPACITY];
+      this.nextFreeSlot = new int[INITIAL_CAPACITY];
+      this.freeSlot = -1;
+   }
+
+   /**
+    * Gets the number of entities in the world.
+    */
+   public int size()
+   {
+      return this.live;
+   }
+
+   /**
+    * Creates the data for a new entity that is not yet in the world
+    * and returns its slot.
+    */
+   public int allocate(Entity entity, EntityKind kind, String id,
+      Point position, int sprite, int resourceLimit,
+      int resourceCount, int actionPeriod, int animationPeriod)
+   {
+      int slot = this.freeSlot;
+      if (slot >= 0)
+      {
+         this.freeSlot = this.nextFreeSlot[slot];
+      }
+      else
+      {
+         if (this.slotLimit == this.denseOf.length)
+         {
+            growSlots();
+         }
+         slot = this.slotLimit++;
+      }
+
+      if (this.count == this.kind.length)
+      {
+         growDense();
+      }
+
+      int dense = this.count++;
+      beforeWrite(dense);
+      beforeSlotWrite(slot);
+      this.denseOf[slot] = dense;
+      this.slotOf[dense] = slot;
+      this.view[dense] = entity;
+      this.kind[dense] = (byte)kind.ordinal();
+      this.id[dense] = id;
+      this.x[dense] = position.x;
+      this.y[dense] = position.y;
+      this.sprite[dense] = sprite;
+      this.resourceLimit[dense] = resourceLimit;
+      this.resourceCount[dense] = resourceCount;
+      this.actionPeriod[dense] = actionPeriod;
+      this.animationPeriod[dense] = animationPeriod;
+      this.animationStart[dense] = 0;
+      this.animationStep[dense] = 0;
+      this.animationEnd[dense] = Long.MAX_VALUE;
+      this.path[dense] = null;
+      this.pathStep[dense] = 0;
+      this.pathTarget[dense] = -1;
+      this.pathRetry[dense] = 0;
+
+      return slot;
+   }
+
+   public int generation(int slot)
+   {
+      return this.generation[slot];
+   }
+
+   /**
+    * Checks if the slot still belongs to the entity of the given
+    * generation.
+    */
+   public boolean isAlive(int slot, int generation)
+   {
+      return this.generation[slot] == generation;
+   }
+
+   /**
+    * Gets the dense index of a live entity.
+    */
+   public int dense(int slot, int generation)
+   {
+      if (this.generation[slot] != generation)
+      {
+         throw new IllegalStateException("entity has been removed");
+      }
+      return this.denseOf[slot];
+   }
+
+   /**
+    * Moves a created entity into the world's part of the table.
+    */
+   public void attach(int slot)
+   {
+      int dense = this.denseOf[slot];
+      if (dense >= this.live)
+      {
+         swap(dense, this.live++);
+      }
+   }
+
+   /**
+    * Drops the entity from the table, whether or not it was in the
+    * world, and invalidates its views.
+    */
+   public void free(int slot)
+   {
+      int dense = this.denseOf[slot];
+      if (dense < this.live)
+      {
+         swap(dense, --this.live);
+         dense = this.live;
+      }
+      swap(dense, --this.count);
+
+      beforeWrite(this.count);
+      beforeSlotWrite(slot);
+      this.view[this.count] = null;
+      this.id[this.count] = null;
+      this.path[this.count] = null;
+      this.generation[slot]++;
+      this.nextFreeSlot[slot] = this.freeSlot;
+      this.freeSlot = slot;
+   }
+
+   /* dense accessors, for views and for loops over [0, size()) */
+
+   public Entity view(int dense)
+   {
+      return this.view[dense];
+   }
+
+   public EntityKind kind(int dense)
+   {
+      return KINDS[this.kind[dense]];
+   }
+
+   public int x(int dense)
+   {
+      return this.x[dense];
+   }
+
+   public int y(int dense)
+   {
+      return this.y[dense];
+   }
+
+   public void setPosition(int dense, int x, int y)
+   {
+      beforeWrite(dense);
+      this.x[dense] = x;
+      this.y[dense] = y;
+   }
+
+   public String id(int dense)
+   {
+      return this.id[dense];
+   }
+
+   public int sprite(int dense)
+   {
+      return this.sprite[dense];
+   }
+
+   public int resourceLimit(int dense)
+   {
+      return this.resourceLimit[dense];
+   }
+
+   public int resourceCount(int dense)
+   {
+      return this.resourceCount[dense];
+   }
+
+   public void setResourceCount(int dense, int resourceCount)
+   {
+      beforeWrite(dense);
+      this.resourceCount[dense] = resourceCount;
+   }
+
+   public int actionPeriod(int dense)
+   {
+      return this.actionPeriod[dense];
+   }
+
+   public int animationPeriod(int dense)
+   {
+      return this.animationPeriod[dense];
+   }
+
+   public long animationStart(int dense)
+   {
+      return this.animationStart[dense];
+   }
+
+   public long animationStep(int dense)
+   {
+      return this.animationStep[dense];
+   }
+
+   public long animationEnd(int dense)
+   {
+      return this.animationEnd[dense];
+   }
+
+   public void setAnimation(int dense, long start, long step, long end)
+   {
+      beforeWrite(dense);
+      this.animationStart[dense] = start;
+      this.animationStep[dense] = step;
+      this.animationEnd[dense] = end;
+   }
+
+   public int[] path(int dense)
+   {
+      return this.path[dense];
+   }
+
+   public int pathStep(int dense)
+   {
+      return this.pathStep[dense];
+   }
+
+   public int pathTarget(int dense)
+   {
+      return this.pathTarget[dense];
+   }
+
+   public int pathRetry(int dense)
+   {
+      return this.pathRetry[dense];
+   }
+
+   public void setPath(int dense, int path[], int step, int target,
+      int retry)
+   {
+      beforeWrite(dense);
+      this.path[dense] = path;
+      this.pathStep[dense] = step;
+      this.pathTarget[dense] = target;
+      this.pathRetry[dense] = retry;
+   }
+
+   /**
+    * Freezes the entities in the world as they stand, for reading on
+    * another thread until released.
+    */
+   public Frozen freeze()
+   {
+      this.frozenDense = new FrozenColumns(new Object[] {
+              this.kind, this.x, this.y, this.sprite, this.resourceLimit,
+              this.resourceCount, this.actionPeriod, this.animationPeriod,
+              this.id, this.animationStart, this.animationStep,
+              this.animationEnd, this.path, this.pathStep, this.pathTarget,
+              this.pathRetry}, this.live, this.frozenDense);
+      this.frozenSlots = new FrozenColumns(new Object[] {
+              this.denseOf, this.generation}, this.slotLimit,
+              this.frozenSlots);
+      return new Frozen(this.frozenDense, this.frozenSlots, this.live);
+   }
+
+   /**
+    * Iterates over the entities in the world, in table order.
+    */
+   public Iterator<Entity> iterator()
+   {
+      return new Iterator<Entity>()
+      {
+         private int next = 0;
+
+         public boolean hasNext()
+         {
+            return this.next < EntityStore.this.live;
+         }
+
+         public Entity next()
+         {
+            if (!hasNext())
+            {
+               throw new NoSuchElementException();
+            }
+            return EntityStore.this.view[this.next++];
+         }
+      };
+   }
+
+   private void swap(int a, int b)
+   {
+      if (a == b)
+      {
+         return;
+      }
+
+      beforeWrite(a);
+      beforeWrite(b);
+      swapBytes(this.kind, a, b);
+      swapInts(this.x, a, b);
+      swapInts(this.y, a, b);
+      swapInts(this.resourceLimit, a, b);
+      swapInts(this.resourceCount, a, b);
+      swapInts(this.actionPeriod, a, b);
+      swapInts(this.animationPeriod, a, b);
+      swapLongs(this.animationStart, a, b);
+      swapLongs(this.animationStep, a, b);
+      swapLongs(this.animationEnd, a, b);
+      swapObjects(this.id, a, b);
+      swapInts(this.sprite, a, b);
+      swapObjects(this.view, a, b);
+      swapInts(this.slotOf, a, b);
+      swapObjects(this.path, a, b);
+      swapInts(this.pathStep, a, b);
+      swapInts(this.pathTarget, a, b);
+      swapInts(this.pathRetry, a, b);
+
+      beforeSlotWrite(this.slotOf[a]);
+      beforeSlotWrite(this.slotOf[b]);
+      this.denseOf[this.slotOf[a]] = a;
+      this.denseOf[this.slotOf[b]] = b;
+   }
+
+   private void beforeWrite(int dense)
+   {
+      if (this.frozenDense != null)
+      {
+         this.frozenDense = this.frozenDense.beforeWrite(dense);
+      }
+   }
+
+   private void beforeSlotWrite(int slot)
+   {
+      if (this.frozenSlots != null)
+      {
+         this.frozenSlots = this.frozenSlots.beforeWrite(slot);
+      }
+   }
+
+   private static void swapBytes(byte values[], int a, int b)
+   {
+      byte value = values[a];
+      values[a] = values[b];
+      values[b] = value;
+   }
+
+   private static void swapInts(int values[], int a, int b)
+   {
+      int value = values[a];
+      values[a] = values[b];
+      values[b] = value;
+   }
+
+   private static void swapLongs(long values[], int a, int b)
+   {
+      long value = values[a];
+      values[a] = values[b];
+      values[b] = value;
+   }
+
+   private static void swapObjects(Object values[], int a, int b)
+   {
+      Object value = values[a];
+      values[a] = values[b];
+      values[b] = value;
+   }
+
+   private void growDense()
+   {
+      int capacity = this.kind.length * 2;
+      this.kind = Arrays.copyOf(this.kind, capacity);
+      this.x = Arrays.copyOf(this.x, capacity);
+      this.y = Arrays.copyOf(this.y, capacity);
+      this.resourceLimit = Arrays.copyOf(this.resourceLimit, capacity);
+      this.resourceCount = Arrays.copyOf(this.resourceCount, capacity);
+      this.actionPeriod = Arrays.copyOf(this.actionPeriod, capacity);
+      this.animationPeriod = Arrays.copyOf(this.animationPeriod, capacity);
+      this.animationStart = Arrays.copyOf(this.animationStart, capacity);
+      this.animationStep = Arrays.copyOf(this.animationStep, capacity);
+      this.animationEnd = Arrays.copyOf(this.animationEnd, capacity);
+      this.id = Arrays.copyOf(this.id, capacity);
+      this.sprite = Arrays.copyOf(this.sprite, capacity);
+      this.view = Arrays.copyOf(this.view, capacity);
+      this.slotOf = Arrays.copyOf(this.slotOf, capacity);
+      this.path = Arrays.copyOf(this.path, capacity);
+      this.pathStep = Arrays.copyOf(this.pathStep, capacity);
+      this.pathTarget = Arrays.copyOf(this.pathTarget, capacity);
+      this.pathRetry = Arrays.copyOf(this.pathRetry, capacity);
+   }
+
+   private void growSlots()
+   {
+      int capacity = this.denseOf.length * 2;
+      this.denseOf = Arrays.copyOf(this.denseOf, capacity);
+      this.generation = Arrays.copyOf(this.generation, capacity);
+      this.nextFreeSlot = Arrays.copyOf(this.nextFreeSlot, capacity);
+   }
+
+   /**
+    * The entities in the world as they stood when frozen, in table
+    * order. Paths are shared rather than copied, as a path is never
+    * changed once found.
+    */
+   public static final class Frozen
+   {
+      /* dense columns, in the order frozen */
+      private static final int KIND = 0;
+      private static final int X = 1;
+      private static final int Y = 2;
+      private static final int SPRITE = 3;
+      private static final int RESOURCE_LIMIT = 4;
+      private static final int RESOURCE_COUNT = 5;
+      private static final int ACTION_PERIOD = 6;
+      private static final int ANIMATION_PERIOD = 7;
+      private static final int ID = 8;
+      private static final int ANIMATION_START = 9;
+      private static final int ANIMATION_STEP = 10;
+      private static final int ANIMATION_END = 11;
+      private static final int PATH = 12;
+      private static final int PATH_STEP = 13;
+      private static final int PATH_TARGET = 14;
+      private static final int PATH_RETRY = 15;
+
+      /* slot columns */
+      private static final int DENSE_OF = 0;
+      private static final int GENERATION = 1;
+
+      private final FrozenColumns dense;
+      private final FrozenColumns slots;
+      private final int size;
+
+      private Frozen(FrozenColumns dense, FrozenColumns slots, int size)
+      {
+         this.dense = dense;
+         this.slots = slots;
+         this.size = size;
+      }
+
+      public int size()
+      {
+         return this.size;
+      }
+
+      /**
+       * Gets where the entity sat among those in the world, or -1 if it
+       * was not in the world.
+       */
+      public int indexOf(Entity entity)
+      {
+         int slot = entity.getSlot();
+         if (this.slots.getInt(GENERATION, slot) != entity.getGeneration())
+         {
+            return -1;
+         }
+         int dense = this.slots.getInt(DENSE_OF, slot);
+         return dense < this.size ? dense : -1;
+      }
+
+      public byte kind(int dense)
+      {
+         return this.dense.getByte(KIND, dense);
+      }
+
+      public int x(int dense)
+      {
+         return this.dense.getInt(X, dense);
+      }
+
+      public int y(int dense)
+      {
+         return this.dense.getInt(Y, dense);
+      }
+
+      public int sprite(int dense)
+      {
+         return this.dense.getInt(SPRITE, dense);
+      }
+
+      public int resourceLimit(int dense)
+      {
+         return this.dense.getInt(RESOURCE_LIMIT, dense);
+      }
+
+      public int resourceCount(int dense)
+      {
+         return this.dense.getInt(RESOURCE_COUNT, dense);
+      }
+
+      public int actionPeriod(int dense)
+      {
+         return this.dense.getInt(ACTION_PERIOD, dense);
+      }
+
+      public int animationPeriod(int dense)
+      {
+         return this.dense.getInt(ANIMATION_PERIOD, dense);
+      }
+
+      public String id(int dense)
+      {
+         return (String) this.dense.getObject(ID, dense);
+      }
+
+      public long animationStart(int dense)
+      {
+         return this.dense.getLong(ANIMATION_START, dense);
+      }
+
+      public long animationStep(int dense)
+      {
+         return this.dense.getLong(ANIMATION_STEP, dense);
+      }
+
+      public long animationEnd(int dense)
+      {
+         return this.dense.getLong(ANIMATION_END, dense);
+      }
+
+      public int[] path(int dense)
+      {
+         return (int[]) this.dense.getObject(PATH, dense);
+      }
+
+      public int pathStep(int dense)
+      {
+         return this.dense.getInt(PATH_STEP, dense);
+      }
+
+      public int pathTarget(int dense)
+      {
+         return this.dense.getInt(PATH_TARGET, dense);
+      }
+
+      public int pathRetry(int dense)
+      {
+         return this.dense.getInt(PATH_RETRY, dense);
+      }
+
+      public void release()
+      {
+         this.dense.release();
+         this.slots.release();
+      }
+   }
+}
@@ -0,0 +1,170 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary min-heap of event numbers from an EventPool, ordered by time
+ * and then by the order the events were scheduled.
+ */
+public final class EventHeap
+{
+   private static final int INITIAL_CAPACITY = 256;
+
+   private EventPool pool;
+   private int heap[];
+   private int size;
+
+   public EventHeap(EventPool pool)
+   {
+      this.pool = pool;
+      this.heap = new int[INITIAL_CAPACITY];
+   }
+
+   public int size()
+   {
+      return this.size;
+   }
+
+   public boolean isEmpty()
+   {
+      return this.size == 0;
+   }
+
+   /**
+    * Gets the earliest event without removing it.
+    */
+   public int peek()
+   {
+      return this.heap[0];
+   }
+
+   public void add(int event)
+   {
+      if (this.size == this.heap.length)
+      {
+         this.heap = Arrays.copyOf(this.heap, this.size * 2);
+      }
+      siftUp(this.size++, event);
+   }
+
+   /**
+    * Adds the given events all at once, rebuilding the heap in a single
+    * pass instead of sifting each one up.
+    */
+   public void addAll(int events[], int count)
+   {
+      if (this.size + count > this.heap.length)
+      {
+         this.heap = Arrays.copyOf(this.heap,
+                 Math.max(this.size + count, this.heap.length * 2));
+      }
+      System.arraycopy(events, 0, this.heap, this.size, count);
+      this.size += count;
+      heapify();
+   }
+
+   /**
+    * Removes and returns the earliest event.
+    */
+   public int poll()
+   {
+      int first = this.heap[0];
+      int last = this.heap[--this.size];
+      if (this.size > 0)
+      {
+         siftDown(0, last);
+      }
+      return first;
+   }
+
+   /**
+    * Hands each event due before the given time to pool.collectDue.
+    * Events due that early form a subtree at the top of the heap, so
+    * only they and their children are looked at.
+    */
+   public void collectDue(long time, List<Entity> due)
+   {
+      collectDue(0, time, due);
+   }
+
+   /*
+      Recurses on the left child and loops on the right, so the depth
+      stays within the height of the heap.
+   */
+   private void collectDue(int index, long time, List<Entity> due)
+   {
+      while (index < this.size && this.pool.time(this.heap[index]) < time)
+      {
+         this.pool.collectDue(this.heap[index], due);
+         collectDue(2 * index + 1, time, due);
+         index = 2 * index + 2;
+      }
+   }
+
+   /**
+    * Frees every cancelled event and rebuilds the heap from the rest
+    * in a single pass.
+    */
+   public void removeCancelled()
+   {
+      int kept = 0;
+      for (int i = 0; i < this.size; i++)
+      {
+         int event = this.heap[i];
+         if (this.pool.isCancelled(event))
+         {
+            this.pool.free(event);
+         }
+         else
+         {
+            this.heap[kept++] = event;
+         }
+      }
+
+      this.size = kept;
+      heapify();
+   }
+
+   private void heapify()
+   {
+      for (int i = this.size / 2 - 1; i >= 0; i--)
+      {
+         siftDown(i, this.heap[i]);
+      }
+   }
+
+   private void siftUp(int index, int event)
+   {
+      while (index > 0)
+      {
+         int parent = (index - 1) / 2;
+         if (!this.pool.before(event, this.heap[parent]))
+         {
+            break;
+         }
+         this.heap[index] = this.heap[parent];
+         index = parent;
+      }
+      this.heap[index] = event;
+   }
+
+   private void siftDown(int index, int event)
+   {
+      int half = this.size / 2;
+      while (index < half)
+      {
+         int child = 2 * index + 1;
+         int right = child + 1;
+         if (right < this.size && this.pool.before(this.heap[right], this.heap[child]))
+         {
+            child = right;
+         }
+         if (!this.pool.before(this.heap[child], event))
+         {
+            break;
+         }
+         this.heap[index] = this.heap[child];
+         index = child;
+      }
+      this.heap[index] = event;
+   }
+}
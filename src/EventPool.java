@@ -0,0 +1,374 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Storage for scheduled events, kept as parallel primitive arrays and
+ * addressed by int event numbers. Freed events are reused, so once the
+ * arrays have grown to fit the world, scheduling and dispatching do not
+ * allocate.
+ *
+ * Events name their entity by a small int id rather than a reference.
+ * The pool hands out these ids while an entity has events queued, along
+ * with the generation that is bumped to cancel all of them at once.
+ *
+ * freeze() hands another thread the waiting events without copying them,
+ * through FrozenColumns, so writes to the columns a Checkpoint reads go
+ * through beforeWrite.
+ */
+public final class EventPool
+{
+   public static final int NONE = -1;
+
+   private static final int INITIAL_CAPACITY = 256;
+
+   /* event columns */
+   private long time[];
+   private long sequence[];
+   private int entityId[];
+   private int generation[];
+   private int next[];
+   private int eventLimit;
+   private int freeEvent;
+
+   /* entity columns */
+   private Entity entities[];
+   private int entityGeneration[];
+   private int pendingCount[];
+   private int freeIds[];
+   private int entityLimit;
+   private int freeIdCount;
+   private int dueMark[];
+   private int dueStamp;
+
+   /* the latest freezes of the event and entity columns still held */
+   private FrozenColumns frozenEvents;
+   private FrozenColumns frozenIds;
+
+   public EventPool()
+   {
+      this.time = new long[INITIAL_CAPACITY];
+      this.sequence = new long[INITIAL_CAPACITY];
+      this.entityId = new int[INITIAL_CAPACITY];
+      this.generation = new int[INITIAL_CAPACITY];
+      this.next = new int[INITIAL_CAPACITY];
+      this.freeEvent = NONE;
+
+      this.entities = new Entity[INITIAL_CAPACITY];
+      this.entityGeneration = new int[INITIAL_CAPACITY];
+      this.pendingCount = new int[INITIAL_CAPACITY];
+      this.freeIds = new int[INITIAL_CAPACITY];
+      this.dueMark = new int[INITIAL_CAPACITY];
+   }
+
+   /**
+    * Stores a new event for the given entity and returns its number.
+    */
+   public int allocate(long time, long sequence, Entity entity)
+   {
+      int id = acquireId(entity);
+      int event = this.freeEvent;
+
+      if (event != NONE)
+      {
+         this.freeEvent = this.next[event];
+      }
+      else
+      {
+         if (this.eventLimit == this.time.length)
+         {
+            growEvents();
+         }
+         event = this.eventLimit++;
+      }
+
+      beforeEventWrite(event);
+      this.time[event] = time;
+      this.sequence[event] = sequence;
+      this.entityId[event] = id;
+      this.generation[event] = this.entityGeneration[id];
+      this.next[event] = NONE;
+      this.pendingCount[id]++;
+
+      return event;
+   }
+
+   /**
+    * Returns the event's storage to the pool.
+    */
+   public void free(int event)
+   {
+      beforeEventWrite(event);
+      this.entityId[event] = NONE;
+      this.next[event] = this.freeEvent;
+      this.freeEvent = event;
+   }
+
+   public long time(int event)
+   {
+      return this.time[event];
+   }
+
+   public long sequence(int event)
+   {
+      return this.sequence[event];
+   }
+
+   /**
+    * Gets the event linked after the given one, for schedulers that
+    * chain events into lists.
+    */
+   public int next(int event)
+   {
+      return this.next[event];
+   }
+
+   public void setNext(int event, int next)
+   {
+      this.next[event] = next;
+   }
+
+   /**
+    * Checks if the first event runs before the second: earlier time
+    * first, and events at the same time in the order scheduled.
+    */
+   public boolean before(int lft, int rht)
+   {
+      return this.time[lft] < this.time[rht] ||
+              (this.time[lft] == this.time[rht] &&
+                      this.sequence[lft] < this.sequence[rht]);
+   }
+
+   /**
+    * Checks if the event's entity was unscheduled after this event
+    * was scheduled, which leaves the event as a tombstone in the queue.
+    */
+   public boolean isCancelled(int event)
+   {
+      return this.generation[event] !=
+              this.entityGeneration[this.entityId[event]];
+   }
+
+   /**
+    * Marks a live event as run and gets its entity. The entity gives
+    * up its id once it has nothing left queued.
+    */
+   public Entity complete(int event)
+   {
+      int id = this.entityId[event];
+      Entity entity = this.entities[id];
+
+      if (--this.pendingCount[id] == 0)
+      {
+         releaseId(id);
+      }
+      return entity;
+   }
+
+   /**
+    * Starts collecting due entities afresh, so that collectDue adds
+    * each entity at most once until the next call.
+    */
+   public void startDue()
+   {
+      this.dueStamp++;
+   }
+
+   /**
+    * Adds the entity of a queued event to the list, unless the event
+    * is cancelled or the entity was added since startDue.
+    */
+   public void collectDue(int event, List<Entity> due)
+   {
+      int id = this.entityId[event];
+      if (!isCancelled(event) && this.dueMark[id] != this.dueStamp)
+      {
+         this.dueMark[id] = this.dueStamp;
+         due.add(this.entities[id]);
+      }
+   }
+
+   /**
+    * Freezes the events as they stand, along with the scheduler's next
+    * sequence number, for reading on another thread until released.
+    */
+   public Frozen freeze(long nextSequence)
+   {
+      this.frozenEvents = new FrozenColumns(new Object[] {
+              this.time, this.sequence, this.entityId, this.generation},
+              this.eventLimit, this.frozenEvents);
+      this.frozenIds = new FrozenColumns(new Object[] {
+              this.entities, this.entityGeneration}, this.entityLimit,
+              this.frozenIds);
+      return new Frozen(this.frozenEvents, this.frozenIds, this.eventLimit,
+              nextSequence);
+   }
+
+   /**
+    * Cancels all queued events of the entity and returns how many
+    * there were.
+    */
+   public int cancelAll(Entity entity)
+   {
+      int id = entity.schedulerId;
+      if (id == NONE)
+      {
+         return 0;
+      }
+
+      int cancelled = this.pendingCount[id];
+      releaseId(id);
+      return cancelled;
+   }
+
+   private int acquireId(Entity entity)
+   {
+      if (entity.schedulerId != NONE)
+      {
+         return entity.schedulerId;
+      }
+
+      int id;
+      if (this.freeIdCount > 0)
+      {
+         id = this.freeIds[--this.freeIdCount];
+      }
+      else
+      {
+         if (this.entityLimit == this.entities.length)
+         {
+            growEntities();
+         }
+         id = this.entityLimit++;
+      }
+
+      beforeIdWrite(id);
+      this.entities[id] = entity;
+      entity.schedulerId = id;
+      return id;
+   }
+
+   /*
+      Bumping the generation on release means that events left behind
+      by the previous owner of an id never match its next owner.
+   */
+   private void releaseId(int id)
+   {
+      beforeIdWrite(id);
+      this.entityGeneration[id]++;
+      this.pendingCount[id] = 0;
+      this.entities[id].schedulerId = NONE;
+      this.entities[id] = null;
+      this.freeIds[this.freeIdCount++] = id;
+   }
+
+   private void beforeEventWrite(int event)
+   {
+      if (this.frozenEvents != null)
+      {
+         this.frozenEvents = this.frozenEvents.beforeWrite(event);
+      }
+   }
+
+   private void beforeIdWrite(int id)
+   {
+      if (this.frozenIds != null)
+      {
+         this.frozenIds = this.frozenIds.beforeWrite(id);
+      }
+   }
+
+   private void growEvents()
+   {
+      int capacity = this.time.length * 2;
+      this.time = Arrays.copyOf(this.time, capacity);
+      this.sequence = Arrays.copyOf(this.sequence, capacity);
+      this.entityId = Arrays.copyOf(this.entityId, capacity);
+      this.generation = Arrays.copyOf(this.generation, capacity);
+      this.next = Arrays.copyOf(this.next, capacity);
+   }
+
+   private void growEntities()
+   {
+      int capacity = this.entities.length * 2;
+      this.entities = Arrays.copyOf(this.entities, capacity);
+      this.entityGeneration = Arrays.copyOf(this.entityGeneration, capacity);
+      this.pendingCount = Arrays.copyOf(this.pendingCount, capacity);
+      this.freeIds = Arrays.copyOf(this.freeIds, capacity);
+      this.dueMark = Arrays.copyOf(this.dueMark, capacity);
+   }
+
+   /**
+    * The events as they stood when frozen, in no particular order. Free
+    * and cancelled events have no entity.
+    */
+   public static final class Frozen
+   {
+      /* event columns, in the order frozen */
+      private static final int TIME = 0;
+      private static final int SEQUENCE = 1;
+      private static final int ENTITY_ID = 2;
+      private static final int GENERATION = 3;
+
+      /* entity columns */
+      private static final int ENTITY = 0;
+      private static final int ENTITY_GENERATION = 1;
+
+      private final FrozenColumns events;
+      private final FrozenColumns ids;
+      private final int eventLimit;
+      private final long nextSequence;
+
+      private Frozen(FrozenColumns events, FrozenColumns ids,
+         int eventLimit, long nextSequence)
+      {
+         this.events = events;
+         this.ids = ids;
+         this.eventLimit = eventLimit;
+         this.nextSequence = nextSequence;
+      }
+
+      /**
+       * Gets the number of events, counting free and cancelled ones.
+       */
+      public int size()
+      {
+         return this.eventLimit;
+      }
+
+      public long getNextSequence()
+      {
+         return this.nextSequence;
+      }
+
+      /**
+       * Gets the entity of a live event, or null for a free or cancelled
+       * one.
+       */
+      public Entity entity(int event)
+      {
+         int id = this.events.getInt(ENTITY_ID, event);
+         if (id == NONE || this.events.getInt(GENERATION, event) !=
+                 this.ids.getInt(ENTITY_GENERATION, id))
+         {
+            return null;
+         }
+         return (Entity) this.ids.getObject(ENTITY, id);
+      }
+
+      public long time(int event)
+      {
+         return this.events.getLong(TIME, event);
+      }
+
+      public long sequence(int event)
+      {
+         return this.events.getLong(SEQUENCE, event);
+      }
+
+      public void release()
+      {
+         this.events.release();
+         this.ids.release();
+      }
+   }
+}
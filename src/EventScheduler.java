@@ -1,127 +1,127 @@
-import java.util.*;
-
-public final class EventScheduler
+/**
+ * Schedules actions for entities and runs them when their time comes.
+ */
+public interface EventScheduler
 {
-   private PriorityQueue<Event> eventQueue;
-   public Map<Entity, List<Event>> pendingEvents;
-   private double timeScale;
+   /**
+    * Asks the scheduler to run the entity's activity action after the
+    * specified period of time. The entity must already have one, as
+    * scheduleActions makes it.
+    */
+   void scheduleEvent(Entity entity, long afterPeriod);
 
-   private static final int QUAKE_ANIMATION_REPEAT_COUNT = 10;
+   /**
+    * Starts the entity's animation from the current time. Frames are
+    * derived from the clock when the entity is drawn, so animating
+    * costs no events; a repeat count of 0 animates forever.
+    */
+   void startAnimation(Entity entity, int repeatCount);
 
-   public EventScheduler(double timeScale)
-   {
-      this.eventQueue = new PriorityQueue<>(new EventComparator());
-      this.pendingEvents = new HashMap<>();
-      this.timeScale = timeScale;
-   }
+   /**
+    * Asks the scheduler to unschedule all events for the given entity.
+    */
+   void unscheduleAllEvents(Entity entity);
 
+   /**
+    * Asks the scheduler to execute all events that take place
+    * before the specified time.
+    */
+   void updateOnTime(long time);
 
    /**
-    * Asks the scheduler to schedule an Action for the given entity,
-    * to be take after the specified period of time.
+    * Limits the wall time, in nanoseconds, that one updateOnTime call
+    * may spend running events; 0 means no limit. Events that do not
+    * fit stay queued, in order, and run first on the next call.
     */
-   public void scheduleEvent(Entity entity, Action action, long afterPeriod)
-   {
-      long time = System.currentTimeMillis() +
-              (long)(afterPeriod * timeScale);
-      Event event = new Event(action, time, entity);
+   void setUpdateBudget(long budget);
 
-      eventQueue.add(event);
+   /**
+    * Gets how far, in milliseconds, the earliest event left overdue by
+    * the last update lags behind the time that update ran to, or 0 if
+    * the last update caught up.
+    */
+   long getLag();
 
-      // update list of pending events for the given entity
-      List<Event> pending = pendingEvents.getOrDefault(entity,
-              new LinkedList<>());
-      pending.add(event);
-      pendingEvents.put(entity, pending);
-   }
+   /**
+    * Gets the largest lag seen so far.
+    */
+   long getMaxLag();
 
    /**
-    * Asks the scheduler to unschedule all events for the given entity.
+    * Gets the number of updates cut short by the budget.
     */
-   public void unscheduleAllEvents(Entity entity)
-   {
-      List<Event> pending = this.pendingEvents.remove(entity);
+   long getOverrunCount();
 
-      if (pending != null)
-      {
-         for (Event event : pending)
-         {
-            this.eventQueue.remove(event);
-         }
-      }
-   }
+   /**
+    * Gets the time of the earliest pending event, or Long.MAX_VALUE
+    * if nothing is scheduled.
+    */
+   long nextEventTime();
+
+   SimulationClock getClock();
 
-   public void scheduleActions(Entity entity,WorldModel world, ImageStore imageStore)
+   /**
+    * Freezes the events still waiting to run, with the sequence number
+    * the next one would get, for a checkpoint to read on another thread.
+    * Must be called between events, on the thread that runs them.
+    */
+   EventPool.Frozen freezePending();
+
+   /**
+    * Queues the given events at their own times and sequence numbers,
+    * as if they had been scheduled here, and carries on numbering from
+    * pending.nextSequence. Like scheduleActions, this makes each
+    * entity's activity action in the given world.
+    */
+   void restorePending(PendingEvents pending, WorldModel world,
+      ImageStore imageStore);
+
+   /**
+    * Gets the number of events executed so far.
+    */
+   long getEventCount();
+
+   default void scheduleActions(Entity entity, WorldModel world,
+      ImageStore imageStore)
    {
-      switch (entity.kind)
+      switch (entity.getKind())
       {
          case MINER_FULL:
-            this.scheduleEvent( entity,
-                    Functions.createActivityAction(entity, world, imageStore),
-                    entity.actionPeriod);
-            this.scheduleEvent( entity, Functions.createAnimationAction(entity, 0),
-                    entity.getAnimationPeriod());
+            entity.makeActivityAction(world, imageStore);
+            this.scheduleEvent(entity, entity.getActionPeriod());
+            this.startAnimation(entity, 0);
             break;
 
          case MINER_NOT_FULL:
-            this.scheduleEvent( entity,
-                    Functions.createActivityAction(entity, world, imageStore),
-                    entity.actionPeriod);
-            this.scheduleEvent( entity,
-                    Functions.createAnimationAction(entity, 0), entity.getAnimationPeriod());
+            entity.makeActivityAction(world, imageStore);
+            this.scheduleEvent(entity, entity.getActionPeriod());
+            this.startAnimation(entity, 0);
             break;
 
          case ORE:
-            this.scheduleEvent( entity,
-                    Functions.createActivityAction(entity, world, imageStore),
-                    entity.actionPeriod);
+            entity.makeActivityAction(world, imageStore);
+            this.scheduleEvent(entity, entity.getActionPeriod());
             break;
 
          case ORE_BLOB:
-            this.scheduleEvent( entity,
-                    Functions.createActivityAction(entity, world, imageStore),
-                    entity.actionPeriod);
-            this.scheduleEvent( entity,
-                    Functions.createAnimationAction(entity, 0), entity.getAnimationPeriod());
+            entity.makeActivityAction(world, imageStore);
+            this.scheduleEvent(entity, entity.getActionPeriod());
+            this.startAnimation(entity, 0);
             break;
 
          case QUAKE:
-            this.scheduleEvent( entity,
-                    Functions.createActivityAction(entity, world, imageStore),
-                    entity.actionPeriod);
-            this.scheduleEvent( entity,
-                    Functions.createAnimationAction(entity, QUAKE_ANIMATION_REPEAT_COUNT),
-                    entity.getAnimationPeriod());
+            entity.makeActivityAction(world, imageStore);
+            this.scheduleEvent(entity, entity.getActionPeriod());
+            this.startAnimation(entity,
+                    Functions.QUAKE_ANIMATION_REPEAT_COUNT);
             break;
 
          case VEIN:
-            this.scheduleEvent(entity,
-                    Functions.createActivityAction(entity, world, imageStore),
-                    entity.actionPeriod);
+            entity.makeActivityAction(world, imageStore);
+            this.scheduleEvent(entity, entity.getActionPeriod());
             break;
 
          default:
       }
    }
-
-
-
-   /**
-    * Asks the scheduler to execute all events that take place
-    * before the specified time.
-    */
-   public void updateOnTime(long time)
-   {
-      while (!this.eventQueue.isEmpty() &&
-              this.eventQueue.peek().time < time)
-      {
-         Event next = this.eventQueue.poll();
-
-         next.removePendingEvent(this);
-
-         next.action.executeAction(this);
-      }
-   }
-
-
 }
@@ -0,0 +1,284 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+
+/**
+ * Records the world as a sequence of images, one every stride of
+ * simulated time. The simulation only hands over snapshots; a thread of
+ * the recorder's own draws them with a WorldView into an offscreen
+ * buffer, and a bounded pool of encoder threads writes them out.
+ *
+ * A recorder for a window never makes the simulation wait. A snapshot
+ * that arrives while the renderer is still busy, or one due while every
+ * pixel buffer is still being encoded, is dropped and counted; frames
+ * are numbered as they are offered, so drops show up as gaps. A blocking
+ * recorder, for a headless run that has no deadline to keep, waits for
+ * the renderer and the buffers instead and records every frame.
+ *
+ * A target ending in ".raw" gets one stream of frames, each a big-endian
+ * header of frame number (long), simulated time (long), width (int) and
+ * height (int) followed by width * height ARGB ints. Frames are appended
+ * as they finish, so they may be out of order. Any other target is a
+ * directory of PNG files named by frame number.
+ */
+public final class FrameRecorder
+{
+   public static final String RAW_SUFFIX = ".raw";
+
+   private static final int RENDER_QUEUE = 32;
+   private static final int BUFFERS_PER_ENCODER = 2;
+   private static final long CLOSE_TIMEOUT = 60;
+
+   private long stride;
+   private boolean blocking;
+   private long nextFrameTime;
+   private int frameNumber;
+
+   private WorldView view;
+   private int width;
+   private int height;
+   private ThreadPoolExecutor renderer;
+   private ExecutorService encoders;
+   private BlockingQueue<int[]> freeBuffers;
+
+   private File directory;
+   private DataOutputStream raw;
+
+   private AtomicInteger recorded;
+   private AtomicInteger dropped;
+
+   public FrameRecorder(String target, long stride, int viewRows,
+      int viewCols, PApplet screen, SpriteAtlas atlas, int tileWidth,
+      int tileHeight, int encoderCount, boolean blocking)
+      throws IOException
+   {
+      this.stride = stride;
+      this.blocking = blocking;
+      this.view = new WorldView(viewRows, viewCols, screen, atlas,
+              tileWidth, tileHeight);
+      this.width = viewCols * tileWidth;
+      this.height = viewRows * tileHeight;
+
+      if (target.endsWith(RAW_SUFFIX))
+      {
+         this.raw = new DataOutputStream(new BufferedOutputStream(
+                 new FileOutputStream(target)));
+      }
+      else
+      {
+         this.directory = new File(target);
+         if (!this.directory.isDirectory() && !this.directory.mkdirs())
+         {
+            throw new IOException("cannot create " + target);
+         }
+      }
+
+      this.recorded = new AtomicInteger();
+      this.dropped = new AtomicInteger();
+      this.renderer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+              new ArrayBlockingQueue<>(RENDER_QUEUE),
+              task -> daemon(task, "frame renderer"), this::reject);
+      this.encoders = Executors.newFixedThreadPool(encoderCount,
+              task -> daemon(task, "frame encoder"));
+      this.freeBuffers = new ArrayBlockingQueue<>(
+              encoderCount * BUFFERS_PER_ENCODER);
+      for (int i = 0; i < encoderCount * BUFFERS_PER_ENCODER; i++)
+      {
+         this.freeBuffers.add(new int[this.width * this.height]);
+      }
+   }
+
+   /**
+    * Tells whether a frame is due at the given simulated time.
+    */
+   public boolean isDue(long time)
+   {
+      return time >= this.nextFrameTime;
+   }
+
+   public long getNextFrameTime()
+   {
+      return this.nextFrameTime;
+   }
+
+   /**
+    * Hands over the snapshot taken at the given simulated time. Unless
+    * the recorder is blocking, this never waits; the frame is dropped if
+    * the recorder is behind. Must be called from one thread only.
+    */
+   public void offer(RenderSnapshot snapshot, long time)
+   {
+      int number = this.frameNumber++;
+      this.nextFrameTime = time + this.stride;
+      this.renderer.execute(() -> render(snapshot, time, number));
+   }
+
+   public int getRecordedCount()
+   {
+      return this.recorded.get();
+   }
+
+   public int getDroppedCount()
+   {
+      return this.dropped.get();
+   }
+
+   /**
+    * Finishes the frames already handed over and closes the output.
+    */
+   public void close()
+   {
+      try
+      {
+         this.renderer.shutdown();
+         this.renderer.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS);
+         this.encoders.shutdown();
+         this.encoders.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+
+      if (this.raw != null)
+      {
+         try
+         {
+            this.raw.close();
+         }
+         catch (IOException e)
+         {
+            System.err.println(e.getMessage());
+         }
+      }
+   }
+
+   /*
+      Called on the offering thread when the render queue is full.
+   */
+   private void reject(Runnable task, ThreadPoolExecutor executor)
+   {
+      if (this.blocking)
+      {
+         try
+         {
+            executor.getQueue().put(task);
+            return;
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+      }
+      this.dropped.incrementAndGet();
+   }
+
+   /*
+      Runs on the renderer thread. A pixel buffer is taken first, so a
+      frame that would be dropped is never drawn; the view only draws
+      what changed since its last frame, so skipping one is safe.
+   */
+   private void render(RenderSnapshot snapshot, long time, int number)
+   {
+      int pixels[] = takeBuffer();
+      if (pixels == null)
+      {
+         this.dropped.incrementAndGet();
+         return;
+      }
+
+      PGraphics buffer = this.view.render(snapshot, time);
+      buffer.loadPixels();
+      System.arraycopy(buffer.pixels, 0, pixels, 0, pixels.length);
+      this.encoders.execute(() -> {
+         try
+         {
+            if (this.raw != null)
+            {
+               writeRaw(pixels, time, number);
+            }
+            else
+            {
+               writePng(pixels, number);
+            }
+            this.recorded.incrementAndGet();
+         }
+         catch (IOException e)
+         {
+            this.dropped.incrementAndGet();
+            System.err.println(e.getMessage());
+         }
+         finally
+         {
+            this.freeBuffers.add(pixels);
+         }
+      });
+   }
+
+   private int[] takeBuffer()
+   {
+      if (!this.blocking)
+      {
+         return this.freeBuffers.poll();
+      }
+
+      try
+      {
+         return this.freeBuffers.take();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         return null;
+      }
+   }
+
+   private void writePng(int pixels[], int number)
+      throws IOException
+   {
+      BufferedImage image = new BufferedImage(this.width, this.height,
+              BufferedImage.TYPE_INT_RGB);
+      image.setRGB(0, 0, this.width, this.height, pixels, 0, this.width);
+      ImageIO.write(image, "png", new File(this.directory,
+              String.format("frame-%06d.png", number)));
+   }
+
+   private void writeRaw(int pixels[], long time, int number)
+      throws IOException
+   {
+      // converted on the encoder thread; only the append is serialized
+      ByteBuffer frame = ByteBuffer.allocate(24 + pixels.length * 4);
+      frame.putLong(number);
+      frame.putLong(time);
+      frame.putInt(this.width);
+      frame.putInt(this.height);
+      frame.asIntBuffer().put(pixels);
+
+      synchronized (this.raw)
+      {
+         this.raw.write(frame.array());
+      }
+   }
+
+   private static Thread daemon(Runnable task, String name)
+   {
+      Thread thread = new Thread(task, name);
+      thread.setDaemon(true);
+      return thread;
+   }
+}
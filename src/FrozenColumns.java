@@ -0,0 +1,205 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Parallel column arrays as they stood when frozen, for another thread
+ * to read while the thread that owns them keeps writing. Nothing is
+ * copied up front. The columns are split into pages of rows, and the
+ * owner calls beforeWrite before it first writes to a page, which saves
+ * the page for the reader unless the reader has already taken it. The
+ * reader takes each page it has not been given, and checks afterwards
+ * that the owner did not start on it meanwhile; if the owner did, the
+ * reader waits for the owner's saved page instead. So the owner never
+ * waits, and copies each page at most once per freeze.
+ *
+ * Columns are int, long, byte or Object arrays. A column the owner
+ * replaces to grow it is no longer written, which is safe too.
+ */
+public final class FrozenColumns
+{
+   private static final int PAGE_BITS = 10;
+   private static final int PAGE_SIZE = 1 << PAGE_BITS;
+   private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+   /* page states */
+   private static final int FROZEN = 0;
+   private static final int READING = 1;
+   private static final int READ = 2;
+   private static final int SAVING = 3;
+   private static final int SAVED = 4;
+
+   private final Object columns[];
+   private final AtomicIntegerArray state;
+   private final Object saved[][];
+   private volatile boolean released;
+
+   /* the owner's: pages it has written since the freeze, and any older
+      freeze still being read */
+   private final boolean written[];
+   private FrozenColumns previous;
+
+   /* the reader's: the pages it has taken or been given */
+   private final Object taken[][];
+
+   /**
+    * Freezes the given columns over their first rows. Any earlier
+    * freeze of the same columns that has not been released goes on
+    * being kept.
+    */
+   public FrozenColumns(Object columns[], int rows, FrozenColumns previous)
+   {
+      int pages = (rows + PAGE_MASK) >>> PAGE_BITS;
+      this.columns = columns.clone();
+      this.state = new AtomicIntegerArray(pages);
+      this.saved = new Object[pages][];
+      this.written = new boolean[pages];
+      this.taken = new Object[pages][];
+      this.previous = held(previous);
+   }
+
+   /**
+    * Saves the row's page for the reader if it is the first write to the
+    * page since the freeze. Only the owner calls this. Returns the freeze
+    * to call next time, which is null once every freeze is released.
+    */
+   public FrozenColumns beforeWrite(int row)
+   {
+      if (this.previous != null)
+      {
+         this.previous = this.previous.beforeWrite(row);
+      }
+
+      int page = row >>> PAGE_BITS;
+      if (page < this.written.length && !this.written[page])
+      {
+         if (this.released)
+         {
+            return this.previous;
+         }
+         this.written[page] = true;
+
+         // the reader may move the page on between the get and the set
+         int state = this.state.get(page);
+         while (state == FROZEN || state == READING)
+         {
+            if (this.state.compareAndSet(page, state, SAVING))
+            {
+               this.saved[page] = copyPage(page);
+               this.state.set(page, SAVED);
+               break;
+            }
+            state = this.state.get(page);
+         }
+      }
+      return this;
+   }
+
+   public int getInt(int column, int row)
+   {
+      return ((int[]) page(row)[column])[row & PAGE_MASK];
+   }
+
+   public long getLong(int column, int row)
+   {
+      return ((long[]) page(row)[column])[row & PAGE_MASK];
+   }
+
+   public byte getByte(int column, int row)
+   {
+      return ((byte[]) page(row)[column])[row & PAGE_MASK];
+   }
+
+   public Object getObject(int column, int row)
+   {
+      return ((Object[]) page(row)[column])[row & PAGE_MASK];
+   }
+
+   /**
+    * Lets the owner write without saving pages; nothing may be read
+    * afterwards.
+    */
+   public void release()
+   {
+      this.released = true;
+   }
+
+   private static FrozenColumns held(FrozenColumns frozen)
+   {
+      while (frozen != null && frozen.released)
+      {
+         frozen = frozen.previous;
+      }
+      if (frozen != null)
+      {
+         frozen.previous = held(frozen.previous);
+      }
+      return frozen;
+   }
+
+   /*
+      A page the reader copied while the owner started saving it may be
+      torn, so the reader keeps it only if it is still the one reading.
+   */
+   private Object[] page(int row)
+   {
+      int page = row >>> PAGE_BITS;
+      Object copy[] = this.taken[page];
+      if (copy == null)
+      {
+         if (this.state.compareAndSet(page, FROZEN, READING))
+         {
+            copy = copyPage(page);
+            if (!this.state.compareAndSet(page, READING, READ))
+            {
+               copy = null;
+            }
+         }
+         if (copy == null)
+         {
+            // the owner is copying one page, but may be switched out
+            while (this.state.get(page) != SAVED)
+            {
+               Thread.yield();
+            }
+            copy = this.saved[page];
+         }
+         this.taken[page] = copy;
+      }
+      return copy;
+   }
+
+   private Object[] copyPage(int page)
+   {
+      int from = page << PAGE_BITS;
+      Object copy[] = new Object[this.columns.length];
+      for (int column = 0; column < copy.length; column++)
+      {
+         Object values = this.columns[column];
+         if (values instanceof int[])
+         {
+            int ints[] = (int[]) values;
+            copy[column] = Arrays.copyOfRange(ints, from,
+                    Math.min(ints.length, from + PAGE_SIZE));
+         }
+         else if (values instanceof long[])
+         {
+            long longs[] = (long[]) values;
+            copy[column] = Arrays.copyOfRange(longs, from,
+                    Math.min(longs.length, from + PAGE_SIZE));
+         }
+         else if (values instanceof byte[])
+         {
+            byte bytes[] = (byte[]) values;
+            copy[column] = Arrays.copyOfRange(bytes, from,
+                    Math.min(bytes.length, from + PAGE_SIZE));
+         }
+         else
+         {
+            Object objects[] = (Object[]) values;
+            copy[column] = Arrays.copyOfRange(objects, from,
+                    Math.min(objects.length, from + PAGE_SIZE));
+         }
+      }
+      return copy;
+   }
+}
@@ -1,4 +1,4 @@
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -13,6 +13,7 @@ public final class Functions
    public static final String QUAKE_ID = "quake";
    public static final int QUAKE_ACTION_PERIOD = 1100;
    public static final int QUAKE_ANIMATION_PERIOD = 100;
+   public static final int QUAKE_ANIMATION_REPEAT_COUNT = 10;
 
 
    public static final int COLOR_MASK = 0xffffff;
@@ -198,7 +199,7 @@ public final class Functions
       List<PImage> imgs = images.get(key);
       if (imgs == null)
       {
-         imgs = new LinkedList<>();
+         imgs = new ArrayList<>();
          images.put(key, imgs);
       }
       return imgs;
@@ -302,12 +303,13 @@ public final class Functions
       {
          Point pt = new Point(Integer.parseInt(properties[MINER_COL]),
             Integer.parseInt(properties[MINER_ROW]));
-         Entity entity = createMinerNotFull(properties[MINER_ID],
+         Entity entity = createMinerNotFull(world.entities,
+            properties[MINER_ID],
             Integer.parseInt(properties[MINER_LIMIT]),
             pt,
             Integer.parseInt(properties[MINER_ACTION_PERIOD]),
             Integer.parseInt(properties[MINER_ANIMATION_PERIOD]),
-                 imageStore.getImageList(MINER_KEY));
+                 imageStore.getSprite(MINER_KEY));
          entity.tryAddEntity(world);
       }
 
@@ -322,8 +324,9 @@ public final class Functions
          Point pt = new Point(
             Integer.parseInt(properties[OBSTACLE_COL]),
             Integer.parseInt(properties[OBSTACLE_ROW]));
-         Entity entity = createObstacle(properties[OBSTACLE_ID],
-            pt, imageStore.getImageList(OBSTACLE_KEY));
+         Entity entity = createObstacle(world.entities,
+            properties[OBSTACLE_ID],
+            pt, imageStore.getSprite(OBSTACLE_KEY));
          entity.tryAddEntity(world);
       }
 
@@ -337,9 +340,10 @@ public final class Functions
       {
          Point pt = new Point(Integer.parseInt(properties[ORE_COL]),
             Integer.parseInt(properties[ORE_ROW]));
-         Entity entity = createOre(properties[ORE_ID],
+         Entity entity = createOre(world.entities,
+            properties[ORE_ID],
             pt, Integer.parseInt(properties[ORE_ACTION_PERIOD]),
-                 imageStore.getImageList(Entity.ORE_KEY));
+                 imageStore.getSprite(Entity.ORE_KEY));
          entity.tryAddEntity(world);
       }
 
@@ -353,8 +357,9 @@ public final class Functions
       {
          Point pt = new Point(Integer.parseInt(properties[SMITH_COL]),
             Integer.parseInt(properties[SMITH_ROW]));
-         Entity entity = createBlacksmith(properties[SMITH_ID],
-            pt, imageStore.getImageList(SMITH_KEY));
+         Entity entity = createBlacksmith(world.entities,
+            properties[SMITH_ID],
+            pt, imageStore.getSprite(SMITH_KEY));
          entity.tryAddEntity(world);
       }
 
@@ -368,10 +373,11 @@ public final class Functions
       {
          Point pt = new Point(Integer.parseInt(properties[VEIN_COL]),
             Integer.parseInt(properties[VEIN_ROW]));
-         Entity entity = createVein(properties[VEIN_ID],
+         Entity entity = createVein(world.entities,
+            properties[VEIN_ID],
             pt,
             Integer.parseInt(properties[VEIN_ACTION_PERIOD]),
-                 imageStore.getImageList(VEIN_KEY));
+                 imageStore.getSprite(VEIN_KEY));
          entity.tryAddEntity(world);
       }
 
@@ -412,72 +418,75 @@ public final class Functions
 
 
 
-
-   public static Action createAnimationAction(Entity entity, int repeatCount)
-   {
-      return new Action(ActionKind.ANIMATION, entity, null, null, repeatCount);
-   }
 
    public static Action createActivityAction(Entity entity, WorldModel world,
       ImageStore imageStore)
    {
-      return new Action(ActionKind.ACTIVITY, entity, world, imageStore, 0);
+      return new Action(ActionKind.ACTIVITY, entity, world, imageStore);
    }
 
-   public static Entity createBlacksmith(String id, Point position,
-      List<PImage> images)
+   public static Entity createBlacksmith(EntityStore store,
+      String id, Point position,
+      int sprite)
    {
-      return new Entity(EntityKind.BLACKSMITH, id, position, images,
+      return new Entity(store, EntityKind.BLACKSMITH, id, position, sprite,
          0, 0, 0, 0);
    }
 
-   public static Entity createMinerFull(String id, int resourceLimit,
+   public static Entity createMinerFull(EntityStore store,
+      String id, int resourceLimit,
       Point position, int actionPeriod, int animationPeriod,
-      List<PImage> images)
+      int sprite)
    {
-      return new Entity(EntityKind.MINER_FULL, id, position, images,
+      return new Entity(store, EntityKind.MINER_FULL, id, position, sprite,
          resourceLimit, resourceLimit, actionPeriod, animationPeriod);
    }
 
-   public static Entity createMinerNotFull(String id, int resourceLimit,
+   public static Entity createMinerNotFull(EntityStore store,
+      String id, int resourceLimit,
       Point position, int actionPeriod, int animationPeriod,
-      List<PImage> images)
+      int sprite)
    {
-      return new Entity(EntityKind.MINER_NOT_FULL, id, position, images,
+      return new Entity(store, EntityKind.MINER_NOT_FULL, id, position, sprite,
          resourceLimit, 0, actionPeriod, animationPeriod);
    }
 
-   public static Entity createObstacle(String id, Point position,
-      List<PImage> images)
+   public static Entity createObstacle(EntityStore store,
+      String id, Point position,
+      int sprite)
    {
-      return new Entity(EntityKind.OBSTACLE, id, position, images,
+      return new Entity(store, EntityKind.OBSTACLE, id, position, sprite,
          0, 0, 0, 0);
    }
 
-   public static Entity createOre(String id, Point position, int actionPeriod,
-      List<PImage> images)
+   public static Entity createOre(EntityStore store,
+      String id, Point position, int actionPeriod,
+      int sprite)
    {
-      return new Entity(EntityKind.ORE, id, position, images, 0, 0,
+      return new Entity(store, EntityKind.ORE, id, position, sprite, 0, 0,
          actionPeriod, 0);
    }
 
-   public static Entity createOreBlob(String id, Point position,
-      int actionPeriod, int animationPeriod, List<PImage> images)
+   public static Entity createOreBlob(EntityStore store,
+      String id, Point position,
+      int actionPeriod, int animationPeriod, int sprite)
    {
-      return new Entity(EntityKind.ORE_BLOB, id, position, images,
+      return new Entity(store, EntityKind.ORE_BLOB, id, position, sprite,
             0, 0, actionPeriod, animationPeriod);
    }
 
-   public static Entity createQuake(Point position, List<PImage> images)
+   public static Entity createQuake(EntityStore store,
+      Point position, int sprite)
    {
-      return new Entity(EntityKind.QUAKE, QUAKE_ID, position, images,
+      return new Entity(store, EntityKind.QUAKE, QUAKE_ID, position, sprite,
          0, 0, QUAKE_ACTION_PERIOD, QUAKE_ANIMATION_PERIOD);
    }
 
-   public static Entity createVein(String id, Point position, int actionPeriod,
-      List<PImage> images)
+   public static Entity createVein(EntityStore store,
+      String id, Point position, int actionPeriod,
+      int sprite)
    {
-      return new Entity(EntityKind.VEIN, id, position, images, 0, 0,
+      return new Entity(store, EntityKind.VEIN, id, position, sprite, 0, 0,
          actionPeriod, 0);
    }
 }
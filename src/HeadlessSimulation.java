@@ -0,0 +1,143 @@
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Runs the world without a window, on a virtual clock that jumps from
+ * one event to the next instead of waiting for wall time. With a
+ * FrameRecorder it stops at every frame to hand over a snapshot of the
+ * whole world, and with an Autosave at every save.
+ */
+public final class HeadlessSimulation
+{
+   private static final long REPORT_PERIOD = 60 * 60 * 1000;
+
+   private WorldModel world;
+   private EventScheduler scheduler;
+   private VirtualClock clock;
+   private FrameRecorder recorder;
+   private Viewport worldView;
+   private Autosave autosave;
+
+   public HeadlessSimulation(WorldModel world, EventScheduler scheduler,
+      VirtualClock clock)
+   {
+      this.world = world;
+      this.scheduler = scheduler;
+      this.clock = clock;
+   }
+
+   /**
+    * Records the whole world while running; the recorder must have been
+    * made the size of the world.
+    */
+   public void setRecorder(FrameRecorder recorder)
+   {
+      this.recorder = recorder;
+      this.worldView = new Viewport(this.world.numRows, this.world.numCols);
+   }
+
+   /**
+    * Saves checkpoints of the world while running.
+    */
+   public void setAutosave(Autosave autosave)
+   {
+      this.autosave = autosave;
+   }
+
+   /**
+    * Runs the simulation for the given amount of simulated time,
+    * printing a summary of the world every simulated hour.
+    */
+   public void run(long duration)
+   {
+      long start = this.clock.currentTime();
+      long end = start + duration;
+      long wallStart = System.currentTimeMillis();
+
+      long reportTime = Math.min(start + REPORT_PERIOD, end);
+      while (reportTime <= end)
+      {
+         stopUntil(reportTime);
+         this.scheduler.updateOnTime(reportTime);
+         this.clock.advanceTo(reportTime);
+         report(reportTime - start);
+
+         if (reportTime == end)
+         {
+            break;
+         }
+         reportTime = Math.min(reportTime + REPORT_PERIOD, end);
+      }
+
+      long wallTime = System.currentTimeMillis() - wallStart;
+      System.out.println(String.format(
+         "simulated %d ms in %d ms wall time, %d events",
+         duration, wallTime, this.scheduler.getEventCount()));
+
+      if (this.recorder != null)
+      {
+         this.recorder.close();
+         System.out.println(String.format("recorded %d frames, dropped %d",
+            this.recorder.getRecordedCount(),
+            this.recorder.getDroppedCount()));
+      }
+
+      if (this.autosave != null)
+      {
+         this.autosave.close();
+         System.out.println(String.format(
+            "autosaved %d times, skipped %d, longest pause %d us",
+            this.autosave.getSavedCount(), this.autosave.getSkippedCount(),
+            this.autosave.getMaxPause() / 1000));
+      }
+   }
+
+   /*
+      Runs up to each frame and save due before the given time and
+      offers it.
+   */
+   private void stopUntil(long time)
+   {
+      for (long stopTime = nextStopTime(); stopTime < time;
+           stopTime = nextStopTime())
+      {
+         this.scheduler.updateOnTime(stopTime);
+         this.clock.advanceTo(stopTime);
+         if (this.recorder != null && this.recorder.isDue(stopTime))
+         {
+            this.recorder.offer(
+                    RenderSnapshot.capture(this.world, this.worldView),
+                    stopTime);
+         }
+         if (this.autosave != null && this.autosave.isDue(stopTime))
+         {
+            this.autosave.offer(this.world, this.scheduler, stopTime);
+         }
+      }
+   }
+
+   private long nextStopTime()
+   {
+      long time = Long.MAX_VALUE;
+      if (this.recorder != null)
+      {
+         time = this.recorder.getNextFrameTime();
+      }
+      if (this.autosave != null)
+      {
+         time = Math.min(time, this.autosave.getNextSaveTime());
+      }
+      return time;
+   }
+
+   private void report(long elapsed)
+   {
+      Map<EntityKind, Integer> counts = new EnumMap<>(EntityKind.class);
+      for (Entity entity : this.world.entities)
+      {
+         counts.merge(entity.getKind(), 1, Integer::sum);
+      }
+
+      System.out.println(String.format("t=%d ms %s", elapsed, counts));
+   }
+}
@@ -0,0 +1,56 @@
+import java.util.List;
+
+/**
+ * Scheduler that keeps its events in a binary heap ordered by time.
+ */
+public final class HeapEventScheduler
+   extends AbstractEventScheduler
+{
+   private EventHeap eventQueue;
+
+   public HeapEventScheduler(double timeScale, SimulationClock clock)
+   {
+      super(timeScale, clock);
+      this.eventQueue = new EventHeap(this.pool);
+   }
+
+   public long nextEventTime()
+   {
+      return this.eventQueue.isEmpty() ? Long.MAX_VALUE
+              : this.pool.time(this.eventQueue.peek());
+   }
+
+   protected void runUntil(long time)
+   {
+      while (!this.eventQueue.isEmpty() &&
+              this.pool.time(this.eventQueue.peek()) < time)
+      {
+         dispatch(this.eventQueue.poll());
+      }
+   }
+
+   protected void collectDueEvents(long time, List<Entity> due)
+   {
+      this.eventQueue.collectDue(time, due);
+   }
+
+   protected void enqueue(int event)
+   {
+      this.eventQueue.add(event);
+   }
+
+   protected void enqueueAll(int events[], int count)
+   {
+      this.eventQueue.addAll(events, count);
+   }
+
+   protected int size()
+   {
+      return this.eventQueue.size();
+   }
+
+   protected void compact()
+   {
+      this.eventQueue.removeCancelled();
+   }
+}
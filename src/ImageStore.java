@@ -1,18 +1,31 @@
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.LinkedList;
 import java.util.Map;
+import java.util.TreeMap;
 import processing.core.PImage;
 
+/**
+ * Images by key. Entities are drawn from a SpriteAtlas packed from all
+ * the images the first time a sprite is asked for, which happens once
+ * the image list has been loaded and the world starts to fill; images
+ * added after that do not make it into the atlas.
+ */
 public final class ImageStore
 {
+   /* the sprite every unknown key resolves to */
+   public static final int DEFAULT_SPRITE = 0;
+
    public Map<String, List<PImage>> images;
    private List<PImage> defaultImages;
+   private Map<String, Integer> spriteIds;
+   private List<String> spriteKeys;
+   private SpriteAtlas atlas;
 
    public ImageStore(PImage defaultImage)
    {
       this.images = new HashMap<>();
-      defaultImages = new LinkedList<>();
+      defaultImages = new ArrayList<>();
       defaultImages.add(defaultImage);
    }
 
@@ -24,4 +37,55 @@ public final class ImageStore
       return this.images.getOrDefault(key, this.defaultImages);
    }
 
+   /**
+    * Gets the id of the sprite with the given key in the atlas.
+    */
+   public int getSprite(String key)
+   {
+      return getAtlasIds().getOrDefault(key, DEFAULT_SPRITE);
+   }
+
+   /**
+    * Gets the key of the sprite with the given id, or null for the
+    * default sprite.
+    */
+   public String getSpriteKey(int sprite)
+   {
+      getAtlasIds();
+      return this.spriteKeys.get(sprite);
+   }
+
+   public SpriteAtlas getAtlas()
+   {
+      getAtlasIds();
+      return this.atlas;
+   }
+
+   /*
+      Packs the atlas on first use. Keys are numbered in sorted order
+      after the default sprite, so ids do not depend on hashing.
+   */
+   private Map<String, Integer> getAtlasIds()
+   {
+      if (this.atlas == null)
+      {
+         List<List<PImage>> sprites = new ArrayList<>();
+         sprites.add(this.defaultImages);
+         this.spriteIds = new HashMap<>();
+         this.spriteKeys = new ArrayList<>();
+         this.spriteKeys.add(null);
+         for (Map.Entry<String, List<PImage>> entry :
+                 new TreeMap<>(this.images).entrySet())
+         {
+            if (!entry.getValue().isEmpty())
+            {
+               this.spriteIds.put(entry.getKey(), sprites.size());
+               this.spriteKeys.add(entry.getKey());
+               sprites.add(entry.getValue());
+            }
+         }
+         this.atlas = new SpriteAtlas(sprites);
+      }
+      return this.spriteIds;
+   }
 }
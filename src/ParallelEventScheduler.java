@@ -0,0 +1,164 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs the events of another scheduler in short slices of time. Before
+ * each slice, the moves of the miners and ore blobs due in it are
+ * planned on a fork-join pool, one task per region of the grid. The
+ * events themselves still run one at a time in the usual order; each
+ * uses its plan only if nothing the plan looked at has changed since,
+ * and plans again otherwise. Plans that reach across region borders
+ * are checked against every region they touch, so the world ends up
+ * exactly as a serial run with the same seed would leave it.
+ */
+public final class ParallelEventScheduler
+   implements EventScheduler
+{
+   private static final long SLICE_PERIOD = 100;
+   private static final int MIN_PARALLEL_PLANS = 64;
+
+   private AbstractEventScheduler events;
+   private WorldModel world;
+   private ForkJoinPool workers;
+   private ThreadLocal<PathFinder> finders;
+   private List<Entity> due;
+   private UpdateBudget budget;
+
+   public ParallelEventScheduler(AbstractEventScheduler events,
+      WorldModel world, int threads)
+   {
+      this.events = events;
+      this.world = world;
+      this.workers = new ForkJoinPool(threads);
+      this.finders = ThreadLocal.withInitial(() -> new PathFinder(world));
+      this.due = new ArrayList<>();
+      this.budget = new UpdateBudget();
+   }
+
+   public void scheduleEvent(Entity entity, long afterPeriod)
+   {
+      this.events.scheduleEvent(entity, afterPeriod);
+   }
+
+   public void startAnimation(Entity entity, int repeatCount)
+   {
+      this.events.startAnimation(entity, repeatCount);
+   }
+
+   public void unscheduleAllEvents(Entity entity)
+   {
+      this.events.unscheduleAllEvents(entity);
+   }
+
+   /**
+    * Runs the events due before the given time slice by slice. A budget
+    * is checked between slices, so planned slices always run whole.
+    */
+   public void updateOnTime(long time)
+   {
+      this.budget.start();
+      long next = this.events.nextEventTime();
+      while (next < time)
+      {
+         long sliceEnd = Math.min(time, next + SLICE_PERIOD);
+         planSlice(sliceEnd);
+         this.events.updateOnTime(sliceEnd);
+         next = this.events.nextEventTime();
+
+         if (next < time && this.budget.exhausted(time, next))
+         {
+            return;
+         }
+      }
+   }
+
+   public void setUpdateBudget(long budget)
+   {
+      this.budget.setBudget(budget);
+   }
+
+   public long getLag()
+   {
+      return this.budget.getLag();
+   }
+
+   public long getMaxLag()
+   {
+      return this.budget.getMaxLag();
+   }
+
+   public long getOverrunCount()
+   {
+      return this.budget.getOverrunCount();
+   }
+
+   public long nextEventTime()
+   {
+      return this.events.nextEventTime();
+   }
+
+   public SimulationClock getClock()
+   {
+      return this.events.getClock();
+   }
+
+   public long getEventCount()
+   {
+      return this.events.getEventCount();
+   }
+
+   public EventPool.Frozen freezePending()
+   {
+      return this.events.freezePending();
+   }
+
+   public void restorePending(PendingEvents pending, WorldModel world,
+      ImageStore imageStore)
+   {
+      this.events.restorePending(pending, world, imageStore);
+   }
+
+   /*
+      Plans are only worth farming out when there are enough of them;
+      otherwise the events plan for themselves as they run.
+   */
+   private void planSlice(long sliceEnd)
+   {
+      this.due.clear();
+      this.events.collectDue(sliceEnd, this.due);
+
+      Map<Integer, List<Entity>> regions = new TreeMap<>();
+      int planned = 0;
+      for (Entity entity : this.due)
+      {
+         EntityKind kind = entity.getKind();
+         if (kind == EntityKind.MINER_NOT_FULL || kind == EntityKind.ORE_BLOB)
+         {
+            regions.computeIfAbsent(
+                    this.world.regionOf(entity.getX(), entity.getY()),
+                    region -> new ArrayList<>()).add(entity);
+            planned++;
+         }
+      }
+
+      if (planned < MIN_PARALLEL_PLANS)
+      {
+         return;
+      }
+
+      this.workers.submit(() -> regions.values().parallelStream()
+              .forEach(this::planRegion)).join();
+   }
+
+   private void planRegion(List<Entity> region)
+   {
+      PathFinder finder = this.finders.get();
+      for (Entity entity : region)
+      {
+         entity.setPlan(entity.planStep(this.world, finder));
+      }
+   }
+}
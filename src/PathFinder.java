@@ -0,0 +1,201 @@
+import java.util.Arrays;
+
+/**
+ * A* search over the four-connected world grid, looking for the
+ * shortest walk to any cell beside a target. The scratch arrays are
+ * sized to the world once and reused; a stamp per search tells which
+ * entries belong to the current one.
+ */
+public final class PathFinder
+{
+   // horizontal moves first, as the greedy steps do
+   private static final int NEIGHBOR_DX[] = {-1, 1, 0, 0};
+   private static final int NEIGHBOR_DY[] = {0, 0, -1, 1};
+
+   private static final int NO_PATH[] = new int[0];
+
+   private WorldModel world;
+   private int numCols;
+   private int cost[];
+   private int parent[];
+   private int seen[];
+   private int closed[];
+   private long open[];
+   private int openSize;
+   private int search;
+   private int reach;
+
+   public PathFinder(WorldModel world)
+   {
+      int cells = world.numRows * world.numCols;
+      this.world = world;
+      this.numCols = world.numCols;
+      this.cost = new int[cells];
+      this.parent = new int[cells];
+      this.seen = new int[cells];
+      this.closed = new int[cells];
+      this.open = new long[cells];
+   }
+
+   /**
+    * Finds the shortest path from (x, y) to a cell beside the target
+    * cell (tx, ty). Cells must be free to be walked through, or may
+    * hold ore when overOre is set. The path is returned as the cells
+    * to step onto in order, each as row * numCols + col, and is empty
+    * when there is no way through.
+    */
+   public int[] findPath(int x, int y, int tx, int ty, boolean overOre)
+   {
+      if (++this.search == 0)
+      {
+         // stamps wrapped around; forget every earlier search
+         Arrays.fill(this.seen, 0);
+         Arrays.fill(this.closed, 0);
+         this.search = 1;
+      }
+      this.openSize = 0;
+      this.reach = 1;
+
+      int start = y * this.numCols + x;
+      this.seen[start] = this.search;
+      this.cost[start] = 0;
+      this.parent[start] = -1;
+      push(heuristic(x, y, tx, ty), start);
+
+      while (this.openSize > 0)
+      {
+         int cell = pop();
+         if (this.closed[cell] == this.search)
+         {
+            continue;
+         }
+         this.closed[cell] = this.search;
+
+         int cx = cell % this.numCols;
+         int cy = cell / this.numCols;
+         this.reach = Math.max(this.reach,
+                 Math.max(Math.abs(cx - x), Math.abs(cy - y)) + 1);
+         if (Math.abs(cx - tx) + Math.abs(cy - ty) == 1)
+         {
+            return walkBack(cell);
+         }
+
+         int nextCost = this.cost[cell] + 1;
+         for (int i = 0; i < NEIGHBOR_DX.length; i++)
+         {
+            int nx = cx + NEIGHBOR_DX[i];
+            int ny = cy + NEIGHBOR_DY[i];
+            if (nx < 0 || nx >= this.numCols || ny < 0 ||
+                    ny >= this.world.numRows || !canEnter(nx, ny, overOre))
+            {
+               continue;
+            }
+
+            int neighbor = ny * this.numCols + nx;
+            if (this.seen[neighbor] != this.search ||
+                    nextCost < this.cost[neighbor])
+            {
+               this.seen[neighbor] = this.search;
+               this.cost[neighbor] = nextCost;
+               this.parent[neighbor] = cell;
+               push(nextCost + heuristic(nx, ny, tx, ty), neighbor);
+            }
+         }
+      }
+
+      return NO_PATH;
+   }
+
+   /**
+    * Gets how far, counted in rows or columns from the start, the last
+    * search looked at the grid.
+    */
+   public int getReach()
+   {
+      return this.reach;
+   }
+
+   /**
+    * Checks if an agent following a path may step onto (x, y) now.
+    */
+   public boolean canEnter(int x, int y, boolean overOre)
+   {
+      if (overOre)
+      {
+         Entity occupant = this.world.getOccupant(x, y);
+         return occupant == null || occupant.getKind() == EntityKind.ORE;
+      }
+      return !this.world.isOccupied(x, y);
+   }
+
+   /*
+      Steps still needed to get beside the target; never more than the
+      real distance, so the first goal cell closed is a nearest one.
+   */
+   private static int heuristic(int x, int y, int tx, int ty)
+   {
+      return Math.max(Math.abs(x - tx) + Math.abs(y - ty) - 1, 0);
+   }
+
+   private int[] walkBack(int goal)
+   {
+      int path[] = new int[this.cost[goal]];
+      for (int cell = goal, i = path.length - 1; i >= 0; i--)
+      {
+         path[i] = cell;
+         cell = this.parent[cell];
+      }
+      return path;
+   }
+
+   /*
+      The open set is a binary heap of (estimate, cell) packed into a
+      long, so ties go to the lower cell. A cell whose cost improves is
+      pushed again and its stale entry skipped once closed.
+   */
+   private void push(int estimate, int cell)
+   {
+      if (this.openSize == this.open.length)
+      {
+         this.open = Arrays.copyOf(this.open, this.open.length * 2);
+      }
+
+      long key = ((long) estimate << 32) | cell;
+      int i = this.openSize++;
+      while (i > 0)
+      {
+         int up = (i - 1) >>> 1;
+         if (this.open[up] <= key)
+         {
+            break;
+         }
+         this.open[i] = this.open[up];
+         i = up;
+      }
+      this.open[i] = key;
+   }
+
+   private int pop()
+   {
+      long top = this.open[0];
+      long last = this.open[--this.openSize];
+      int i = 0;
+      int half = this.openSize >>> 1;
+      while (i < half)
+      {
+         int child = 2 * i + 1;
+         if (child + 1 < this.openSize && this.open[child + 1] < this.open[child])
+         {
+            child++;
+         }
+         if (last <= this.open[child])
+         {
+            break;
+         }
+         this.open[i] = this.open[child];
+         i = child;
+      }
+      this.open[i] = last;
+      return (int) top;
+   }
+}
@@ -0,0 +1,62 @@
+import java.util.Arrays;
+
+/**
+ * The events a Checkpoint read, to be put back in a scheduler all at
+ * once on resume. Each event has its entity, its time and the sequence
+ * number that orders events at the same time; nextSequence is the number
+ * the scheduler would give the next event it schedules.
+ */
+public final class PendingEvents
+{
+   private static final int INITIAL_CAPACITY = 256;
+
+   public long nextSequence;
+
+   private int size;
+   private Entity entity[];
+   private long time[];
+   private long sequence[];
+
+   public PendingEvents()
+   {
+      this.entity = new Entity[INITIAL_CAPACITY];
+      this.time = new long[INITIAL_CAPACITY];
+      this.sequence = new long[INITIAL_CAPACITY];
+   }
+
+   public int size()
+   {
+      return this.size;
+   }
+
+   public void add(Entity entity, long time, long sequence)
+   {
+      if (this.size == this.entity.length)
+      {
+         int capacity = this.size * 2;
+         this.entity = Arrays.copyOf(this.entity, capacity);
+         this.time = Arrays.copyOf(this.time, capacity);
+         this.sequence = Arrays.copyOf(this.sequence, capacity);
+      }
+
+      int i = this.size++;
+      this.entity[i] = entity;
+      this.time[i] = time;
+      this.sequence[i] = sequence;
+   }
+
+   public Entity entity(int i)
+   {
+      return this.entity[i];
+   }
+
+   public long time(int i)
+   {
+      return this.time[i];
+   }
+
+   public long sequence(int i)
+   {
+      return this.sequence[i];
+   }
+}
@@ -0,0 +1,387 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Runs the world in fixed steps instead of one event at a time. Every
+ * tick goes through the entity kinds in phases: veins spawn, ore ages,
+ * blobs seek, miners seek, then full miners and quakes, which turn
+ * into something else, have their turn.
+ *
+ * Phases that search the world first work out what each due entity
+ * wants in a parallel loop that only reads the world, each worker
+ * filling its own stretch of the intent buffer. The intents are then
+ * committed one by one in entity store order; an intent whose cell or
+ * target was taken by an earlier one is dropped and the entity waits
+ * for its next turn, so the outcome does not depend on the threads.
+ *
+ * Entities keep scheduling themselves through scheduleEvent as usual;
+ * the engine only records when each one is next due. Turns are also
+ * queued by time in a heap per kind, so a phase only takes the turns
+ * that are due instead of looking at every entity. A turn left behind
+ * by an entity that was rescheduled or unscheduled stays queued as a
+ * tombstone, as in AbstractEventScheduler.
+ */
+public final class PhasedTickEngine
+   implements EventScheduler
+{
+   private static final long TICK_PERIOD = 100;
+   private static final int MIN_PARALLEL_INTENTS = 64;
+   private static final int COMPACT_MIN_TOMBSTONES = 1024;
+   private static final Comparator<Entity> STORE_ORDER =
+           Comparator.comparingInt(Entity::getStoreIndex);
+
+   private static final EntityKind PHASES[] = {
+      EntityKind.VEIN, EntityKind.ORE, EntityKind.ORE_BLOB,
+      EntityKind.MINER_NOT_FULL, EntityKind.MINER_FULL, EntityKind.QUAKE
+   };
+
+   private double timeScale;
+   private SimulationClock clock;
+   private WorldModel world;
+   private ImageStore imageStore;
+   private ForkJoinPool workers;
+   private int threads;
+   private ThreadLocal<PathFinder> finders;
+
+   /* when the entity in each store slot is next due */
+   private long due[];
+   private Entity dueEntity[];
+
+   /* the same turns by time, one queue per kind */
+   private EventPool pool;
+   private EventHeap queues[];
+   private int tombstones;
+
+   private List<Entity> phase;
+   private Object intents[];
+   private long nextTick;
+   private long eventCount;
+
+   private UpdateBudget budget;
+
+   public PhasedTickEngine(double timeScale, SimulationClock clock,
+      WorldModel world, ImageStore imageStore, int threads)
+   {
+      this.timeScale = timeScale;
+      this.clock = clock;
+      this.world = world;
+      this.imageStore = imageStore;
+      this.workers = new ForkJoinPool(threads);
+      this.threads = threads;
+      this.finders = ThreadLocal.withInitial(() -> new PathFinder(world));
+      this.due = new long[256];
+      this.dueEntity = new Entity[256];
+      this.pool = new EventPool();
+      this.queues = new EventHeap[EntityKind.values().length];
+      for (int kind = 0; kind < this.queues.length; kind++)
+      {
+         this.queues[kind] = new EventHeap(this.pool);
+      }
+      this.phase = new ArrayList<>();
+      this.intents = new Object[256];
+      this.nextTick = Long.MIN_VALUE;
+      this.budget = new UpdateBudget();
+   }
+
+   public void scheduleEvent(Entity entity, long afterPeriod)
+   {
+      setDue(entity, this.clock.currentTime() +
+              (long)(afterPeriod * this.timeScale));
+   }
+
+   public void startAnimation(Entity entity, int repeatCount)
+   {
+      entity.startAnimation(this.clock.currentTime(),
+              (long)(entity.getAnimationPeriod() * this.timeScale),
+              repeatCount);
+   }
+
+   public void unscheduleAllEvents(Entity entity)
+   {
+      clearDue(entity);
+   }
+
+   /**
+    * Runs every tick that falls before the given time. Ticks are laid
+    * out from the first call, TICK_PERIOD apart. With a budget set,
+    * the update stops between ticks once it runs out, after at least one.
+    */
+   public void updateOnTime(long time)
+   {
+      if (this.nextTick == Long.MIN_VALUE)
+      {
+         this.nextTick = this.clock.currentTime();
+      }
+
+      this.budget.start();
+      while (this.nextTick < time)
+      {
+         this.clock.advanceTo(this.nextTick);
+         for (EntityKind kind : PHASES)
+         {
+            runPhase(kind, this.nextTick);
+         }
+         this.nextTick += TICK_PERIOD;
+
+         if (this.nextTick < time &&
+                 this.budget.exhausted(time, this.nextTick))
+         {
+            return;
+         }
+      }
+   }
+
+   public void setUpdateBudget(long budget)
+   {
+      this.budget.setBudget(budget);
+   }
+
+   public long getLag()
+   {
+      return this.budget.getLag();
+   }
+
+   public long getMaxLag()
+   {
+      return this.budget.getMaxLag();
+   }
+
+   public long getOverrunCount()
+   {
+      return this.budget.getOverrunCount();
+   }
+
+   public long nextEventTime()
+   {
+      long next = Long.MAX_VALUE;
+      for (EventHeap queue : this.queues)
+      {
+         while (!queue.isEmpty() && this.pool.isCancelled(queue.peek()))
+         {
+            this.pool.free(queue.poll());
+            this.tombstones--;
+         }
+         if (!queue.isEmpty())
+         {
+            next = Math.min(next, this.pool.time(queue.peek()));
+         }
+      }
+      return next;
+   }
+
+   public SimulationClock getClock()
+   {
+      return this.clock;
+   }
+
+   /**
+    * Gets the number of entity turns taken so far.
+    */
+   public long getEventCount()
+   {
+      return this.eventCount;
+   }
+
+   /**
+    * Freezes the next turn of each entity that has one; between ticks
+    * these are just the live events in the pool. Turns go by store
+    * order, so they carry no sequence number.
+    */
+   public EventPool.Frozen freezePending()
+   {
+      return this.pool.freeze(0);
+   }
+
+   public void restorePending(PendingEvents pending, WorldModel world,
+      ImageStore imageStore)
+   {
+      for (int i = 0; i < pending.size(); i++)
+      {
+         pending.entity(i).makeActivityAction(world, imageStore);
+         setDue(pending.entity(i), pending.time(i));
+      }
+   }
+
+   /*
+      Takes the kind's due turns off its queue and runs them in store
+      order, whatever order they were queued in.
+   */
+   private void runPhase(EntityKind kind, long tick)
+   {
+      EventHeap queue = this.queues[kind.ordinal()];
+      this.phase.clear();
+      while (!queue.isEmpty() && this.pool.time(queue.peek()) <= tick)
+      {
+         int event = queue.poll();
+         if (this.pool.isCancelled(event))
+         {
+            this.tombstones--;
+         }
+         else
+         {
+            this.phase.add(this.pool.complete(event));
+         }
+         this.pool.free(event);
+      }
+      this.phase.sort(STORE_ORDER);
+
+      int count = this.phase.size();
+      if (count == 0)
+      {
+         return;
+      }
+
+      if (this.intents.length < count)
+      {
+         this.intents = new Object[Math.max(count, this.intents.length * 2)];
+      }
+      if (kind == EntityKind.VEIN || kind == EntityKind.ORE_BLOB ||
+              kind == EntityKind.MINER_NOT_FULL)
+      {
+         planIntents(count);
+      }
+
+      // intents are let go as they are taken, so that the paths and
+      // entities they hold do not outlive the phase
+      for (int i = 0; i < count; i++)
+      {
+         Entity entity = this.phase.get(i);
+         Object intent = this.intents[i];
+         this.intents[i] = null;
+
+         // an earlier commit may have removed or rescheduled it
+         if (!entity.isAlive() || !isDue(entity, tick))
+         {
+            continue;
+         }
+
+         clearDue(entity);
+         this.eventCount++;
+         commit(kind, entity, intent);
+      }
+      this.phase.clear();
+   }
+
+   /*
+      Each worker takes one contiguous stretch of the phase and writes
+      only the matching stretch of the intent buffer.
+   */
+   private void planIntents(int count)
+   {
+      if (count < MIN_PARALLEL_INTENTS)
+      {
+         planRange(0, count);
+         return;
+      }
+
+      int chunk = (count + this.threads - 1) / this.threads;
+      this.workers.submit(() -> IntStream.range(0, this.threads).parallel()
+              .forEach(part -> planRange(part * chunk,
+                      Math.min(count, (part + 1) * chunk)))).join();
+   }
+
+   private void planRange(int from, int to)
+   {
+      PathFinder finder = this.finders.get();
+      for (int i = from; i < to; i++)
+      {
+         Entity entity = this.phase.get(i);
+         if (entity.getKind() == EntityKind.VEIN)
+         {
+            this.intents[i] = this.world.findOpenAround(entity.getPosition());
+         }
+         else
+         {
+            this.intents[i] = entity.planStep(this.world, finder);
+         }
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   private void commit(EntityKind kind, Entity entity, Object intent)
+   {
+      switch (kind)
+      {
+         case VEIN:
+            entity.applyVeinSpawn(this.world, this.imageStore, this,
+                    (Optional<Point>) intent);
+            break;
+
+         case ORE_BLOB:
+            entity.applyOreBlobStep(this.world, this.imageStore, this,
+                    (StepPlan) intent);
+            break;
+
+         case MINER_NOT_FULL:
+            entity.applyMinerNotFullStep(this.world, this.imageStore, this,
+                    (StepPlan) intent);
+            break;
+
+         default:
+            entity.getAction().executeAction(this);
+            break;
+      }
+   }
+
+   private void setDue(Entity entity, long time)
+   {
+      cancelQueued(entity);
+      int slot = entity.getSlot();
+      if (slot >= this.due.length)
+      {
+         int capacity = Math.max(slot + 1, this.due.length * 2);
+         this.due = Arrays.copyOf(this.due, capacity);
+         this.dueEntity = Arrays.copyOf(this.dueEntity, capacity);
+      }
+
+      this.due[slot] = time;
+      this.dueEntity[slot] = entity;
+      this.queues[entity.getKind().ordinal()].add(
+              this.pool.allocate(time, 0, entity));
+   }
+
+   private void clearDue(Entity entity)
+   {
+      int slot = entity.getSlot();
+      if (slot < this.dueEntity.length && this.dueEntity[slot] == entity)
+      {
+         this.dueEntity[slot] = null;
+      }
+      cancelQueued(entity);
+   }
+
+   /*
+      Once tombstones make up most of the queues, they are dropped.
+   */
+   private void cancelQueued(Entity entity)
+   {
+      this.tombstones += this.pool.cancelAll(entity);
+
+      int queued = 0;
+      for (EventHeap queue : this.queues)
+      {
+         queued += queue.size();
+      }
+      if (this.tombstones >= COMPACT_MIN_TOMBSTONES &&
+              this.tombstones > queued / 2)
+      {
+         for (EventHeap queue : this.queues)
+         {
+            queue.removeCancelled();
+         }
+         this.tombstones = 0;
+      }
+   }
+
+   private boolean isDue(Entity entity, long tick)
+   {
+      int slot = entity.getSlot();
+      return slot < this.dueEntity.length &&
+              this.dueEntity[slot] == entity && this.due[slot] <= tick;
+   }
+}
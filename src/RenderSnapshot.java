@@ -0,0 +1,258 @@
+import processing.core.PImage;
+
+/**
+ * What the viewport showed at one moment of the simulation, captured
+ * on the simulation thread and never changed afterwards, so the drawing
+ * thread can read it without locks. Entities carry their animation
+ * timing rather than a frame, so frames keep advancing between
+ * snapshots.
+ *
+ * Zoomed out, tiles show whole blocks of cells, and the snapshot holds
+ * each block's entity count and most common kind instead of background
+ * chunks and entities. Either way its size goes with the number of
+ * tiles, not with the world.
+ */
+public final class RenderSnapshot
+{
+   public final int viewCol;
+   public final int viewRow;
+   public final int numRows;
+   public final int numCols;
+
+   /* each tile shows a block 2^zoom cells on a side */
+   public final int zoom;
+
+   /* the background chunks the viewport overlaps */
+   public final int chunkCount;
+   public final int chunkCol[];
+   public final int chunkRow[];
+   public final PImage chunkTiles[][];
+
+   /* WorldModel.getCellVersion of each viewport cell */
+   public final long cellVersion[];
+
+   /* the entity in each viewport cell, or -1 */
+   public final int cellEntity[];
+
+   /* entities in the viewport, in viewport cells */
+   public final int entityCount;
+   public final int entityCol[];
+   public final int entityRow[];
+   public final int entitySprite[];
+   private final long animationStart[];
+   private final long animationStep[];
+   private final long animationEnd[];
+
+   /* zoomed out, the number of entities and the most common kind's
+      ordinal in the block of each tile; the kind is -1 for an empty
+      block and OUTSIDE past the edge of the world */
+   public static final int OUTSIDE = -2;
+   public final int blockCount[];
+   public final int blockKind[];
+
+   public final Minimap minimap;
+
+   private RenderSnapshot(Viewport viewport, int chunkCount,
+      int entityCount, Minimap minimap)
+   {
+      int tiles = viewport.numRows * viewport.numCols;
+      this.viewCol = viewport.col;
+      this.viewRow = viewport.row;
+      this.numRows = viewport.numRows;
+      this.numCols = viewport.numCols;
+      this.zoom = viewport.zoom;
+      this.chunkCount = chunkCount;
+      this.chunkCol = new int[chunkCount];
+      this.chunkRow = new int[chunkCount];
+      this.chunkTiles = new PImage[chunkCount][];
+      this.cellVersion = new long[this.zoom == 0 ? tiles : 0];
+      this.cellEntity = new int[this.zoom == 0 ? tiles : 0];
+      this.blockCount = new int[this.zoom == 0 ? 0 : tiles];
+      this.blockKind = new int[this.zoom == 0 ? 0 : tiles];
+      this.minimap = minimap;
+      this.entityCount = entityCount;
+      this.entityCol = new int[entityCount];
+      this.entityRow = new int[entityCount];
+      this.entitySprite = new int[entityCount];
+      this.animationStart = new long[entityCount];
+      this.animationStep = new long[entityCount];
+      this.animationEnd = new long[entityCount];
+   }
+
+   /**
+    * Captures the part of the world inside the viewport. Must be called
+    * on the thread that runs the simulation. Only the viewport's cells
+    * are looked at, however many entities the world holds.
+    */
+   public static RenderSnapshot capture(WorldModel world, Viewport viewport)
+   {
+      return capture(world, viewport, null);
+   }
+
+   /**
+    * Captures the viewport, sharing the previous snapshot's minimap if
+    * the world has not changed since.
+    */
+   public static RenderSnapshot capture(WorldModel world, Viewport viewport,
+      RenderSnapshot previous)
+   {
+      Minimap minimap = previous != null &&
+              previous.minimap.mutationCount == world.getMutationCount()
+              ? previous.minimap : new Minimap(world);
+      if (viewport.zoom > 0)
+      {
+         return captureBlocks(world, viewport, minimap);
+      }
+
+      EntityStore entities = world.entities;
+
+      Entity inView[] = new Entity[viewport.numRows * viewport.numCols];
+      int count = world.findOccupants(viewport.col, viewport.row,
+              viewport.numCols, viewport.numRows, inView);
+
+      int firstChunkCol = viewport.col / WorldModel.CHUNK_SIZE;
+      int lastChunkCol = (Math.min(viewport.col + viewport.numCols,
+              world.numCols) - 1) / WorldModel.CHUNK_SIZE;
+      int firstChunkRow = viewport.row / WorldModel.CHUNK_SIZE;
+      int lastChunkRow = (Math.min(viewport.row + viewport.numRows,
+              world.numRows) - 1) / WorldModel.CHUNK_SIZE;
+
+      RenderSnapshot snapshot = new RenderSnapshot(viewport,
+              (lastChunkCol - firstChunkCol + 1) *
+                      (lastChunkRow - firstChunkRow + 1), count, minimap);
+
+      for (int chunkRow = firstChunkRow, c = 0; chunkRow <= lastChunkRow;
+           chunkRow++)
+      {
+         for (int chunkCol = firstChunkCol; chunkCol <= lastChunkCol;
+              chunkCol++, c++)
+         {
+            snapshot.chunkCol[c] = chunkCol;
+            snapshot.chunkRow[c] = chunkRow;
+            snapshot.chunkTiles[c] = world.getBackgroundChunk(chunkCol,
+                    chunkRow);
+         }
+      }
+
+      for (int row = 0; row < viewport.numRows; row++)
+      {
+         for (int col = 0; col < viewport.numCols; col++)
+         {
+            int cell = row * viewport.numCols + col;
+            int x = viewport.col + col;
+            int y = viewport.row + row;
+            snapshot.cellVersion[cell] =
+                    x < world.numCols && y < world.numRows
+                            ? world.getCellVersion(x, y) : 0;
+            snapshot.cellEntity[cell] = -1;
+         }
+      }
+
+      for (int e = 0; e < count; e++)
+      {
+         int i = inView[e].getStoreIndex();
+         snapshot.entityCol[e] = entities.x(i) - viewport.col;
+         snapshot.entityRow[e] = entities.y(i) - viewport.row;
+         snapshot.cellEntity[snapshot.entityRow[e] * viewport.numCols +
+                 snapshot.entityCol[e]] = e;
+         snapshot.entitySprite[e] = entities.sprite(i);
+         snapshot.animationStart[e] = entities.animationStart(i);
+         snapshot.animationStep[e] = entities.animationStep(i);
+         snapshot.animationEnd[e] = entities.animationEnd(i);
+      }
+
+      return snapshot;
+   }
+
+   /*
+      Captures a zoomed out viewport, one pyramid block per tile.
+   */
+   private static RenderSnapshot captureBlocks(WorldModel world,
+      Viewport viewport, Minimap minimap)
+   {
+      RenderSnapshot snapshot = new RenderSnapshot(viewport, 0, 0, minimap);
+      int level = viewport.zoom;
+      int blockCols = (world.numCols - 1 >> level) + 1;
+      int blockRows = (world.numRows - 1 >> level) + 1;
+
+      for (int row = 0; row < viewport.numRows; row++)
+      {
+         for (int col = 0; col < viewport.numCols; col++)
+         {
+            int tile = row * viewport.numCols + col;
+            int blockCol = (viewport.col >> level) + col;
+            int blockRow = (viewport.row >> level) + row;
+            if (blockCol < blockCols && blockRow < blockRows)
+            {
+               snapshot.blockCount[tile] =
+                       world.getBlockCount(level, blockCol, blockRow);
+               snapshot.blockKind[tile] =
+                       world.getBlockKind(level, blockCol, blockRow);
+            }
+            else
+            {
+               snapshot.blockKind[tile] = OUTSIDE;
+            }
+         }
+      }
+
+      return snapshot;
+   }
+
+   /**
+    * Gets the atlas frame the given entity of the snapshot shows at the
+    * given time.
+    */
+   public int entityFrame(int entity, SpriteAtlas atlas, long time)
+   {
+      int sprite = this.entitySprite[entity];
+      return atlas.getFrame(sprite, Entity.imageIndex(
+              atlas.getFrameCount(sprite), this.animationStart[entity],
+              this.animationStep[entity], this.animationEnd[entity], time));
+   }
+
+   /**
+    * The whole world at the lowest block level that fits in MAX_SIZE
+    * blocks a side, so it costs the same however large the world is.
+    * Snapshots taken while the world is unchanged share one.
+    */
+   public static final class Minimap
+   {
+      public static final int MAX_SIZE = 128;
+
+      public final int level;
+      public final int cols;
+      public final int rows;
+      public final int count[];
+      public final int kind[];
+      public final long mutationCount;
+
+      private Minimap(WorldModel world)
+      {
+         int level = 0;
+         while ((world.numCols - 1 >> level) + 1 > MAX_SIZE ||
+                 (world.numRows - 1 >> level) + 1 > MAX_SIZE)
+         {
+            level++;
+         }
+
+         this.level = level;
+         this.cols = (world.numCols - 1 >> level) + 1;
+         this.rows = (world.numRows - 1 >> level) + 1;
+         this.count = new int[this.cols * this.rows];
+         this.kind = new int[this.cols * this.rows];
+         this.mutationCount = world.getMutationCount();
+
+         for (int row = 0; row < this.rows; row++)
+         {
+            for (int col = 0; col < this.cols; col++)
+            {
+               this.count[row * this.cols + col] =
+                       world.getBlockCount(level, col, row);
+               this.kind[row * this.cols + col] =
+                       world.getBlockKind(level, col, row);
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,608 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Loads a world save file by mapping it into memory and reading the
+ * bytes where they lie. Lines are cut into tokens by offset, the entry
+ * kind is found by comparing bytes and numbers are parsed straight from
+ * the buffer; the only Strings made are the ids that entities keep.
+ *
+ * A large file is cut into chunks at line breaks and the chunks are
+ * parsed on several threads, each into a Batch of entries in file
+ * order. The batches are then added to the world one after another on
+ * the calling thread, so entities get the same slots, duplicate
+ * positions are rejected the same way and the world comes out the same
+ * however many threads did the parsing.
+ *
+ * Entries are split and checked exactly as Functions.processLine does,
+ * and problems are reported with the same messages and line numbers as
+ * Functions.load.
+ */
+public final class SaveFileLoader
+{
+   private static final byte KEYS[][] = {
+      bytes(Functions.BGND_KEY),
+      bytes(Functions.MINER_KEY),
+      bytes(Functions.OBSTACLE_KEY),
+      bytes(Entity.ORE_KEY),
+      bytes(Functions.SMITH_KEY),
+      bytes(Functions.VEIN_KEY)
+   };
+   private static final int BACKGROUND = 0;
+   private static final int MINER = 1;
+   private static final int OBSTACLE = 2;
+   private static final int ORE = 3;
+   private static final int SMITH = 4;
+   private static final int VEIN = 5;
+   private static final int INVALID = 6;
+
+   /* no entry has more; longer lines are only counted */
+   private static final int MAX_TOKENS = 8;
+
+   /* background ids are few, so their Backgrounds are shared */
+   private static final int MAX_BACKGROUNDS = 16;
+
+   /* smaller chunks are not worth a thread */
+   private static final int MIN_CHUNK_BYTES = 1 << 20;
+   private static final int CHUNKS_PER_THREAD = 4;
+
+   private ByteBuffer bytes;
+   private ImageStore imageStore;
+   private Batch batch;
+
+   private int tokenStart[];
+   private int tokenEnd[];
+   private int tokenCount;
+
+   private List<byte[]> backgroundIds;
+   private List<Background> backgrounds;
+
+   private SaveFileLoader(ByteBuffer bytes, ImageStore imageStore)
+   {
+      this.bytes = bytes;
+      this.imageStore = imageStore;
+      this.batch = new Batch();
+      this.tokenStart = new int[MAX_TOKENS];
+      this.tokenEnd = new int[MAX_TOKENS];
+      this.backgroundIds = new ArrayList<>();
+      this.backgrounds = new ArrayList<>();
+   }
+
+   /**
+    * Maps the given file and loads every entry in it into the world,
+    * parsing on as many threads as there are processors.
+    */
+   public static void load(String filename, WorldModel world,
+      ImageStore imageStore)
+      throws IOException
+   {
+      try (FileChannel channel = FileChannel.open(Path.of(filename),
+              StandardOpenOption.READ))
+      {
+         if (channel.size() > Integer.MAX_VALUE)
+         {
+            throw new IOException(filename + " is too large to map");
+         }
+         ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                 channel.size());
+         load(bytes, world, imageStore,
+                 Runtime.getRuntime().availableProcessors());
+      }
+   }
+
+   /**
+    * Loads every entry in the buffer into the world, parsing on up to
+    * the given number of threads.
+    */
+   public static void load(ByteBuffer bytes, WorldModel world,
+      ImageStore imageStore, int threads)
+   {
+      int bounds[] = splitLines(bytes, Math.min(threads * CHUNKS_PER_THREAD,
+              bytes.limit() / MIN_CHUNK_BYTES));
+
+      Batch batches[];
+      if (bounds.length == 2)
+      {
+         batches = new Batch[] { parse(bytes, imageStore, 0, bytes.limit()) };
+      }
+      else
+      {
+         ForkJoinPool workers = new ForkJoinPool(threads);
+         try
+         {
+            batches = workers.submit(() -> IntStream
+                    .range(0, bounds.length - 1)
+                    .parallel()
+                    .mapToObj(chunk -> parse(bytes, imageStore,
+                            bounds[chunk], bounds[chunk + 1]))
+                    .toArray(Batch[]::new)).join();
+         }
+         finally
+         {
+            workers.shutdown();
+         }
+      }
+
+      int sprites[] = new int[KEYS.length];
+      for (int key = 0; key < KEYS.length; key++)
+      {
+         sprites[key] = imageStore.getSprite(
+                 new String(KEYS[key], StandardCharsets.US_ASCII));
+      }
+
+      int firstLine = 0;
+      for (Batch batch : batches)
+      {
+         batch.addTo(world, sprites, firstLine);
+         firstLine += batch.lineCount;
+      }
+   }
+
+   /*
+      Cuts the buffer into about the given number of chunks, each
+      starting at the beginning of a line. Returns the chunk bounds,
+      one more than the number of chunks.
+   */
+   private static int[] splitLines(ByteBuffer bytes, int chunks)
+   {
+      int bounds[] = new int[Math.max(1, chunks) + 1];
+      int count = 1;
+      for (int chunk = 1; chunk < chunks; chunk++)
+      {
+         int bound = (int) ((long) bytes.limit() * chunk / chunks);
+         bound = Math.max(bound, bounds[count - 1]);
+         while (bound < bytes.limit() && bytes.get(bound - 1) != '\n')
+         {
+            bound++;
+         }
+         if (bound > bounds[count - 1] && bound < bytes.limit())
+         {
+            bounds[count++] = bound;
+         }
+      }
+      bounds[count++] = bytes.limit();
+      return Arrays.copyOf(bounds, count);
+   }
+
+   private static Batch parse(ByteBuffer bytes, ImageStore imageStore,
+      int start, int end)
+   {
+      SaveFileLoader loader = new SaveFileLoader(bytes, imageStore);
+      loader.parseLines(start, end);
+      return loader.batch;
+   }
+
+   /*
+      Parses the lines in the given byte range into the batch, numbering
+      them from 0.
+   */
+   private void parseLines(int start, int end)
+   {
+      int lineNumber = 0;
+      int lineStart = start;
+      while (lineStart < end)
+      {
+         int lineEnd = lineStart;
+         while (lineEnd < end && !isLineEnd(this.bytes.get(lineEnd)))
+         {
+            lineEnd++;
+         }
+
+         parseLine(lineStart, lineEnd, lineNumber);
+         lineNumber++;
+
+         lineStart = lineEnd + 1;
+         if (lineEnd + 1 < end && this.bytes.get(lineEnd) == '\r' &&
+                 this.bytes.get(lineEnd + 1) == '\n')
+         {
+            lineStart++;
+         }
+      }
+      this.batch.lineCount = lineNumber;
+   }
+
+   private void parseLine(int start, int end, int lineNumber)
+   {
+      try
+      {
+         if (!processLine(start, end, lineNumber))
+         {
+            this.batch.add(INVALID, lineNumber, null, 0, 0, 0, 0, 0);
+         }
+      }
+      catch (NumberFormatException e)
+      {
+         this.batch.add(INVALID, lineNumber, null, 0, 0, 0, 0, 0);
+      }
+   }
+
+   /*
+      Splits the line on every whitespace byte, dropping empty tokens at
+      the end only, as String.split("\\s") does, and dispatches on the
+      first token.
+   */
+   private boolean processLine(int start, int end, int line)
+   {
+      int count = 0;
+      int tokenStart = start;
+      this.tokenCount = 0;
+      for (int i = start; i <= end; i++)
+      {
+         if (i == end || isWhitespace(this.bytes.get(i)))
+         {
+            if (count < MAX_TOKENS)
+            {
+               this.tokenStart[count] = tokenStart;
+               this.tokenEnd[count] = i;
+            }
+            count++;
+            if (i > tokenStart)
+            {
+               this.tokenCount = count;
+            }
+            tokenStart = i + 1;
+         }
+      }
+      if (this.tokenCount == 0)
+      {
+         return false;
+      }
+
+      switch (findKey())
+      {
+         case BACKGROUND:
+            return parseBackground(line);
+         case MINER:
+            return parseMiner(line);
+         case OBSTACLE:
+            return parseObstacle(line);
+         case ORE:
+            return parseOre(line);
+         case SMITH:
+            return parseSmith(line);
+         case VEIN:
+            return parseVein(line);
+         default:
+            return false;
+      }
+   }
+
+   private boolean parseBackground(int line)
+   {
+      if (this.tokenCount == Functions.BGND_NUM_PROPERTIES)
+      {
+         int x = parseInt(Functions.BGND_COL);
+         int y = parseInt(Functions.BGND_ROW);
+         this.batch.add(BACKGROUND, line, findBackground(Functions.BGND_ID),
+                 x, y, 0, 0, 0);
+      }
+
+      return this.tokenCount == Functions.BGND_NUM_PROPERTIES;
+   }
+
+   private boolean parseMiner(int line)
+   {
+      if (this.tokenCount == Functions.MINER_NUM_PROPERTIES)
+      {
+         int x = parseInt(Functions.MINER_COL);
+         int y = parseInt(Functions.MINER_ROW);
+         this.batch.add(MINER, line, token(Functions.MINER_ID), x, y,
+                 parseInt(Functions.MINER_LIMIT),
+                 parseInt(Functions.MINER_ACTION_PERIOD),
+                 parseInt(Functions.MINER_ANIMATION_PERIOD));
+      }
+
+      return this.tokenCount == Functions.MINER_NUM_PROPERTIES;
+   }
+
+   private boolean parseObstacle(int line)
+   {
+      if (this.tokenCount == Functions.OBSTACLE_NUM_PROPERTIES)
+      {
+         int x = parseInt(Functions.OBSTACLE_COL);
+         int y = parseInt(Functions.OBSTACLE_ROW);
+         this.batch.add(OBSTACLE, line, token(Functions.OBSTACLE_ID), x, y,
+                 0, 0, 0);
+      }
+
+      return this.tokenCount == Functions.OBSTACLE_NUM_PROPERTIES;
+   }
+
+   private boolean parseOre(int line)
+   {
+      if (this.tokenCount == Functions.ORE_NUM_PROPERTIES)
+      {
+         int x = parseInt(Functions.ORE_COL);
+         int y = parseInt(Functions.ORE_ROW);
+         this.batch.add(ORE, line, token(Functions.ORE_ID), x, y, 0,
+                 parseInt(Functions.ORE_ACTION_PERIOD), 0);
+      }
+
+      return this.tokenCount == Functions.ORE_NUM_PROPERTIES;
+   }
+
+   private boolean parseSmith(int line)
+   {
+      if (this.tokenCount == Functions.SMITH_NUM_PROPERTIES)
+      {
+         int x = parseInt(Functions.SMITH_COL);
+         int y = parseInt(Functions.SMITH_ROW);
+         this.batch.add(SMITH, line, token(Functions.SMITH_ID), x, y,
+                 0, 0, 0);
+      }
+
+      return this.tokenCount == Functions.SMITH_NUM_PROPERTIES;
+   }
+
+   private boolean parseVein(int line)
+   {
+      if (this.tokenCount == Functions.VEIN_NUM_PROPERTIES)
+      {
+         int x = parseInt(Functions.VEIN_COL);
+         int y = parseInt(Functions.VEIN_ROW);
+         this.batch.add(VEIN, line, token(Functions.VEIN_ID), x, y, 0,
+                 parseInt(Functions.VEIN_ACTION_PERIOD), 0);
+      }
+
+      return this.tokenCount == Functions.VEIN_NUM_PROPERTIES;
+   }
+
+   /*
+      Gets the index into KEYS of the first token, or -1.
+   */
+   private int findKey()
+   {
+      int start = this.tokenStart[0];
+      int length = this.tokenEnd[0] - start;
+      for (int key = 0; key < KEYS.length; key++)
+      {
+         if (KEYS[key].length == length && matches(KEYS[key], start))
+         {
+            return key;
+         }
+      }
+      return -1;
+   }
+
+   private boolean matches(byte expected[], int start)
+   {
+      for (int i = 0; i < expected.length; i++)
+      {
+         if (this.bytes.get(start + i) != expected[i])
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /*
+      Gets the shared Background for the id in the given token, making
+      one the first time the id is seen.
+   */
+   private Background findBackground(int token)
+   {
+      int start = this.tokenStart[token];
+      int length = this.tokenEnd[token] - start;
+      for (int i = 0; i < this.backgroundIds.size(); i++)
+      {
+         byte id[] = this.backgroundIds.get(i);
+         if (id.length == length && matches(id, start))
+         {
+            return this.backgrounds.get(i);
+         }
+      }
+
+      String id = token(token);
+      Background background = new Background(id,
+              this.imageStore.getImageList(id));
+      if (this.backgrounds.size() < MAX_BACKGROUNDS)
+      {
+         this.backgroundIds.add(id.getBytes(StandardCharsets.UTF_8));
+         this.backgrounds.add(background);
+      }
+      return background;
+   }
+
+   private String token(int token)
+   {
+      byte text[] = new byte[this.tokenEnd[token] - this.tokenStart[token]];
+      this.bytes.get(this.tokenStart[token], text);
+      return new String(text, StandardCharsets.UTF_8);
+   }
+
+   /*
+      Parses the token as Integer.parseInt would, without making a
+      String of it.
+   */
+   private int parseInt(int token)
+   {
+      int i = this.tokenStart[token];
+      int end = this.tokenEnd[token];
+      boolean negative = false;
+      if (i < end && (this.bytes.get(i) == '-' || this.bytes.get(i) == '+'))
+      {
+         negative = this.bytes.get(i) == '-';
+         i++;
+      }
+      if (i == end)
+      {
+         throw new NumberFormatException("no digits");
+      }
+
+      long value = 0;
+      for (; i < end; i++)
+      {
+         int digit = this.bytes.get(i) - '0';
+         if (digit < 0 || digit > 9)
+         {
+            throw new NumberFormatException("not a digit");
+         }
+         value = value * 10 + digit;
+         if (value > (long) Integer.MAX_VALUE + 1)
+         {
+            throw new NumberFormatException("out of range");
+         }
+      }
+      if (negative)
+      {
+         value = -value;
+      }
+      if (value > Integer.MAX_VALUE)
+      {
+         throw new NumberFormatException("out of range");
+      }
+      return (int) value;
+   }
+
+   /*
+      The whitespace of the regular expression \s.
+   */
+   private static boolean isWhitespace(byte b)
+   {
+      // most bytes are printable, so one comparison usually settles it
+      return b <= ' ' && (b == ' ' || b == '\t' || b == '\n' || b == 0x0b ||
+              b == '\f' || b == '\r');
+   }
+
+   private static boolean isLineEnd(byte b)
+   {
+      return b <= '\r' && (b == '\n' || b == '\r');
+   }
+
+   private static byte[] bytes(String key)
+   {
+      return key.getBytes(StandardCharsets.US_ASCII);
+   }
+
+   /**
+    * The entries of one chunk of the file, in file order, as parallel
+    * arrays. Lines are numbered from the start of the chunk.
+    */
+   private static final class Batch
+   {
+      private static final int INITIAL_CAPACITY = 1024;
+
+      private int lineCount;
+      private int size;
+      private byte kind[];
+      private int line[];
+      private Object value[];
+      private int x[];
+      private int y[];
+      private int resourceLimit[];
+      private int actionPeriod[];
+      private int animationPeriod[];
+
+      private Batch()
+      {
+         this.kind = new byte[INITIAL_CAPACITY];
+         this.line = new int[INITIAL_CAPACITY];
+         this.value = new Object[INITIAL_CAPACITY];
+         this.x = new int[INITIAL_CAPACITY];
+         this.y = new int[INITIAL_CAPACITY];
+         this.resourceLimit = new int[INITIAL_CAPACITY];
+         this.actionPeriod = new int[INITIAL_CAPACITY];
+         this.animationPeriod = new int[INITIAL_CAPACITY];
+      }
+
+      /*
+         The value is the Background of a background entry and the id of
+         an entity.
+      */
+      private void add(int kind, int line, Object value, int x, int y,
+         int resourceLimit, int actionPeriod, int animationPeriod)
+      {
+         if (this.size == this.kind.length)
+         {
+            int capacity = this.size * 2;
+            this.kind = Arrays.copyOf(this.kind, capacity);
+            this.line = Arrays.copyOf(this.line, capacity);
+            this.value = Arrays.copyOf(this.value, capacity);
+            this.x = Arrays.copyOf(this.x, capacity);
+            this.y = Arrays.copyOf(this.y, capacity);
+            this.resourceLimit = Arrays.copyOf(this.resourceLimit, capacity);
+            this.actionPeriod = Arrays.copyOf(this.actionPeriod, capacity);
+            this.animationPeriod = Arrays.copyOf(this.animationPeriod,
+                    capacity);
+         }
+
+         int i = this.size++;
+         this.kind[i] = (byte) kind;
+         this.line[i] = line;
+         this.value[i] = value;
+         this.x[i] = x;
+         this.y[i] = y;
+         this.resourceLimit[i] = resourceLimit;
+         this.actionPeriod[i] = actionPeriod;
+         this.animationPeriod[i] = animationPeriod;
+      }
+
+      /*
+         Adds the entries to the world in order, reporting problems by
+         line of the file; the chunk starts at the given line.
+      */
+      private void addTo(WorldModel world, int sprites[], int firstLine)
+      {
+         for (int i = 0; i < this.size; i++)
+         {
+            int lineNumber = firstLine + this.line[i];
+            Point pt = new Point(this.x[i], this.y[i]);
+            String id = this.kind[i] == BACKGROUND || this.kind[i] == INVALID
+                    ? null : (String) this.value[i];
+            Entity entity;
+
+            switch (this.kind[i])
+            {
+               case BACKGROUND:
+                  ((Background) this.value[i]).setBackground(world, pt);
+                  continue;
+               case MINER:
+                  entity = Functions.createMinerNotFull(world.entities, id,
+                          this.resourceLimit[i], pt, this.actionPeriod[i],
+                          this.animationPeriod[i], sprites[MINER]);
+                  break;
+               case OBSTACLE:
+                  entity = Functions.createObstacle(world.entities, id, pt,
+                          sprites[OBSTACLE]);
+                  break;
+               case ORE:
+                  entity = Functions.createOre(world.entities, id, pt,
+                          this.actionPeriod[i], sprites[ORE]);
+                  break;
+               case SMITH:
+                  entity = Functions.createBlacksmith(world.entities, id, pt,
+                          sprites[SMITH]);
+                  break;
+               case VEIN:
+                  entity = Functions.createVein(world.entities, id, pt,
+                          this.actionPeriod[i], sprites[VEIN]);
+                  break;
+               default:
+                  System.err.println(String.format(
+                          "invalid entry on line %d", lineNumber));
+                  continue;
+            }
+
+            try
+            {
+               entity.tryAddEntity(world);
+            }
+            catch (IllegalArgumentException e)
+            {
+               System.err.println(String.format("issue on line %d: %s",
+                  lineNumber, e.getMessage()));
+            }
+         }
+      }
+   }
+}
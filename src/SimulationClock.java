@@ -0,0 +1,16 @@
+/**
+ * Source of the current simulation time, in milliseconds.
+ */
+public interface SimulationClock
+{
+   /**
+    * Gets the current simulation time.
+    */
+   long currentTime();
+
+   /**
+    * Moves the clock forward to the given time. Clocks that follow
+    * wall time ignore this.
+    */
+   void advanceTo(long time);
+}
@@ -0,0 +1,215 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the scheduler on a thread of its own, so that a slow tick does
+ * not hold up drawing and a slow frame does not hold up the world.
+ * After every update it publishes a RenderSnapshot of the viewport.
+ * Other threads only read the latest snapshot and hand over commands,
+ * such as moving the viewport, through a lock-free queue that the
+ * simulation drains before each update.
+ *
+ * Each update may only spend part of a frame running events; the rest
+ * carry over. When the world falls behind, the updates run back to
+ * back and snapshots are still published no more than once a frame.
+ *
+ * A FrameRecorder, if set, is offered a snapshot whenever a frame is due
+ * in simulated time, and an Autosave the world whenever a save is.
+ */
+public final class SimulationThread
+   extends Thread
+{
+   private static final long UPDATE_PERIOD = 1000 / 60;
+   private static final long UPDATE_BUDGET = UPDATE_PERIOD * 1000000 / 2;
+
+   private WorldModel world;
+   private EventScheduler scheduler;
+   private Viewport viewport;
+   private Queue<Runnable> commands;
+   private AtomicReference<RenderSnapshot> snapshot;
+   private long lastPublished;
+   private FrameRecorder recorder;
+   private Autosave autosave;
+
+   public SimulationThread(WorldModel world, EventScheduler scheduler,
+      int viewRows, int viewCols)
+   {
+      super("simulation");
+      setDaemon(true);
+
+      this.world = world;
+      this.scheduler = scheduler;
+      this.scheduler.setUpdateBudget(UPDATE_BUDGET);
+      this.viewport = new Viewport(viewRows, viewCols);
+      this.commands = new ConcurrentLinkedQueue<>();
+      this.snapshot = new AtomicReference<>(
+              RenderSnapshot.capture(world, this.viewport));
+   }
+
+   public void run()
+   {
+      while (!isInterrupted())
+      {
+         long start = System.currentTimeMillis();
+
+         boolean changedView = false;
+         Runnable command;
+         while ((command = this.commands.poll()) != null)
+         {
+            command.run();
+            changedView = true;
+         }
+
+         this.scheduler.updateOnTime(this.scheduler.getClock().currentTime());
+
+         if (changedView || start - this.lastPublished >= UPDATE_PERIOD)
+         {
+            this.snapshot.set(RenderSnapshot.capture(this.world,
+                    this.viewport, this.snapshot.get()));
+            this.lastPublished = start;
+         }
+
+         long time = this.scheduler.getClock().currentTime();
+         if (this.recorder != null && this.recorder.isDue(time))
+         {
+            this.recorder.offer(RenderSnapshot.capture(this.world,
+                    this.viewport, this.snapshot.get()), time);
+         }
+         if (this.autosave != null && this.autosave.isDue(time))
+         {
+            this.autosave.offer(this.world, this.scheduler, time);
+         }
+
+         // an update cut short by its budget goes straight on to the next
+         long wait = UPDATE_PERIOD - (System.currentTimeMillis() - start);
+         if (wait > 0 && this.scheduler.getLag() == 0)
+         {
+            try
+            {
+               Thread.sleep(wait);
+            }
+            catch (InterruptedException e)
+            {
+               return;
+            }
+         }
+      }
+   }
+
+   /**
+    * Records what the viewport shows while running. Must be set before
+    * the thread starts.
+    */
+   public void setRecorder(FrameRecorder recorder)
+   {
+      this.recorder = recorder;
+   }
+
+   /**
+    * Saves checkpoints of the world while running. Must be set before
+    * the thread starts.
+    */
+   public void setAutosave(Autosave autosave)
+   {
+      this.autosave = autosave;
+   }
+
+   /**
+    * Gets the most recently published snapshot.
+    */
+   public RenderSnapshot getSnapshot()
+   {
+      return this.snapshot.get();
+   }
+
+   /**
+    * Gets the scheduler the simulation runs, for reading its lag
+    * counters.
+    */
+   public EventScheduler getScheduler()
+   {
+      return this.scheduler;
+   }
+
+   /**
+    * Asks the simulation to run the command before its next update.
+    * Safe to call from any thread.
+    */
+   public void submit(Runnable command)
+   {
+      this.commands.offer(command);
+   }
+
+   /**
+    * Asks the simulation to move the viewport by the given number of
+    * tiles across and down, keeping it inside the world.
+    */
+   public void shiftView(int colDelta, int rowDelta)
+   {
+      submit(() -> moveView(
+              this.viewport.col + (colDelta << this.viewport.zoom),
+              this.viewport.row + (rowDelta << this.viewport.zoom)));
+   }
+
+   /**
+    * Asks the simulation to zoom the viewport out (positive) or in
+    * (negative) by the given number of levels, keeping its center in
+    * place. Zooming out stops once the whole world is in view.
+    */
+   public void zoomView(int zoomDelta)
+   {
+      submit(() -> {
+         int centerCol = this.viewport.col + this.viewport.getWorldCols() / 2;
+         int centerRow = this.viewport.row + this.viewport.getWorldRows() / 2;
+         this.viewport.zoom(WorldView.clamp(this.viewport.zoom + zoomDelta,
+                 0, maxZoom()));
+         centerView(centerCol, centerRow);
+      });
+   }
+
+   /**
+    * Asks the simulation to center the viewport on the world cell
+    * (x, y), as far as it can while staying inside the world.
+    */
+   public void jumpView(int x, int y)
+   {
+      submit(() -> centerView(x, y));
+   }
+
+   private void centerView(int x, int y)
+   {
+      moveView(x - this.viewport.getWorldCols() / 2,
+              y - this.viewport.getWorldRows() / 2);
+   }
+
+   /*
+      Puts the viewport's top left corner at the world cell (col, row),
+      kept inside the world and on a block boundary.
+   */
+   private void moveView(int col, int row)
+   {
+      int zoom = this.viewport.zoom;
+      int newCol = WorldView.clamp(col, 0,
+              Math.max(0, this.world.numCols - this.viewport.getWorldCols()));
+      int newRow = WorldView.clamp(row, 0,
+              Math.max(0, this.world.numRows - this.viewport.getWorldRows()));
+
+      this.viewport.shift(newCol >> zoom << zoom, newRow >> zoom << zoom);
+   }
+
+   /*
+      The lowest zoom that shows the whole world.
+   */
+   private int maxZoom()
+   {
+      int zoom = 0;
+      while (zoom < this.world.getBlockLevels() &&
+              ((this.viewport.numCols << zoom) < this.world.numCols ||
+                      (this.viewport.numRows << zoom) < this.world.numRows))
+      {
+         zoom++;
+      }
+      return zoom;
+   }
+}
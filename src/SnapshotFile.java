@@ -0,0 +1,510 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The binary world snapshot format. A file starts with a magic number,
+ * a format version and a flags byte, none of them compressed; the body
+ * that follows is gzipped when FLAG_GZIP is set.
+ *
+ * The body holds the size of the world, then its backgrounds as a
+ * palette of distinct background ids and runs of cells, row by row, that
+ * share a palette entry. The sprite keys follow, then the entities in
+ * table order, one column at a time: kinds, columns, rows, sprites,
+ * resource limits, resource counts, action periods, animation periods
+ * and ids. Counts and ints are written as variable-length integers, so
+ * small numbers take a byte or two.
+ *
+ * Sprites are saved by key, so a snapshot can be restored with a
+ * different image list; as with save files, the images must be loaded
+ * before a snapshot is.
+ *
+ * A Checkpoint is a snapshot with FLAG_CHECKPOINT set and more state
+ * after the world, so it can be restored as a plain snapshot too.
+ */
+public final class SnapshotFile
+{
+   public static final String GZIP_SUFFIX = ".gz";
+   public static final String BACKUP_SUFFIX = ".bak";
+
+   public static final int MAGIC = 0x57524c44;
+   public static final int VERSION = 1;
+   public static final int FLAG_GZIP = 1;
+   public static final int FLAG_CHECKPOINT = 2;
+
+   /* magic, version and flags */
+   private static final int HEADER_BYTES = 4 + 2 + 1;
+   private static final int BUFFER_SIZE = 1 << 16;
+   private static final String TEMP_SUFFIX = ".tmp";
+
+   private static final EntityKind KINDS[] = EntityKind.values();
+
+   /**
+    * Writes the body of a snapshot file.
+    */
+   public interface Body
+   {
+      void write(DataOutputStream out)
+         throws IOException;
+   }
+
+   private SnapshotFile()
+   {
+   }
+
+   /**
+    * Writes the world to the given file, gzipped if asked. The file is
+    * written under a temporary name and then moved into place, so a
+    * failed save leaves any earlier file as it was.
+    */
+   public static void write(String filename, WorldModel world,
+      ImageStore imageStore, boolean compress)
+      throws IOException
+   {
+      WorldCapture capture = WorldCapture.capture(world, imageStore);
+      try
+      {
+         write(filename, compress ? FLAG_GZIP : 0, false,
+                 out -> writeWorld(out, capture));
+      }
+      finally
+      {
+         capture.release();
+      }
+   }
+
+   /**
+    * Writes a snapshot file with the given flags and body, in the same
+    * way as a world snapshot. With backup set, the file it replaces is
+    * kept under the same name plus BACKUP_SUFFIX.
+    */
+   public static void write(String filename, int flags, boolean backup,
+      Body body)
+      throws IOException
+   {
+      Path target = Path.of(filename);
+      Path temp = Path.of(filename + TEMP_SUFFIX);
+      try (OutputStream file = new FileOutputStream(temp.toFile()))
+      {
+         DataOutputStream header = new DataOutputStream(file);
+         header.writeInt(MAGIC);
+         header.writeShort(VERSION);
+         header.writeByte(flags);
+
+         OutputStream stream = (flags & FLAG_GZIP) != 0
+                 ? new GZIPOutputStream(file, BUFFER_SIZE)
+                 : file;
+         DataOutputStream out = new DataOutputStream(
+                 new BufferedOutputStream(stream, BUFFER_SIZE));
+         body.write(out);
+         out.close();
+      }
+      if (backup && Files.exists(target))
+      {
+         Files.move(target, Path.of(filename + BACKUP_SUFFIX),
+                 StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+      }
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+   }
+
+   /**
+    * Reads a world from the given file. An uncompressed body is mapped
+    * and decoded where it lies.
+    */
+   public static WorldModel read(String filename, ImageStore imageStore)
+      throws IOException
+   {
+      return readWorld(readBody(filename, 0), imageStore);
+   }
+
+   /**
+    * Writes the body of a world snapshot from a capture of the world.
+    * Safe to call on any thread.
+    */
+   public static void writeWorld(DataOutputStream out, WorldCapture world)
+      throws IOException
+   {
+      writeVarInt(out, world.numRows);
+      writeVarInt(out, world.numCols);
+
+      // one palette entry per background id, with its first Background
+      Map<String, Integer> paletteIndex = new HashMap<>();
+      List<Background> palette = new ArrayList<>();
+      int cells[] = new int[world.numRows * world.numCols];
+      int runs = 0;
+      for (int y = 0; y < world.numRows; y++)
+      {
+         for (int x = 0; x < world.numCols; x++)
+         {
+            Background background = world.getBackgroundCell(x, y);
+            Integer index = paletteIndex.get(background.getId());
+            if (index == null)
+            {
+               index = palette.size();
+               paletteIndex.put(background.getId(), index);
+               palette.add(background);
+            }
+
+            int cell = y * world.numCols + x;
+            cells[cell] = index;
+            if (cell == 0 || cells[cell - 1] != index)
+            {
+               runs++;
+            }
+         }
+      }
+
+      writeVarInt(out, palette.size());
+      for (Background background : palette)
+      {
+         writeString(out, background.getId());
+         writeVarInt(out, background.imageIndex);
+      }
+
+      writeVarInt(out, runs);
+      for (int start = 0; start < cells.length; )
+      {
+         int end = start + 1;
+         while (end < cells.length && cells[end] == cells[start])
+         {
+            end++;
+         }
+         writeVarInt(out, cells[start]);
+         writeVarInt(out, end - start);
+         start = end;
+      }
+
+      writeVarInt(out, world.spriteKeys.length);
+      for (String key : world.spriteKeys)
+      {
+         writeString(out, key);
+      }
+
+      EntityStore.Frozen entities = world.entities;
+      int count = entities.size();
+      writeVarInt(out, count);
+      for (int i = 0; i < count; i++)
+      {
+         out.writeByte(entities.kind(i));
+      }
+      for (int i = 0; i < count; i++)
+      {
+         writeVarInt(out, entities.x(i));
+      }
+      for (int i = 0; i < count; i++)
+      {
+         writeVarInt(out, entities.y(i));
+      }
+      for (int i = 0; i < count; i++)
+      {
+         writeVarInt(out, entities.sprite(i));
+      }
+      for (int i = 0; i < count; i++)
+      {
+         writeSignedVarInt(out, entities.resourceLimit(i));
+      }
+      for (int i = 0; i < count; i++)
+      {
+         writeSignedVarInt(out, entities.resourceCount(i));
+      }
+      for (int i = 0; i < count; i++)
+      {
+         writeSignedVarInt(out, entities.actionPeriod(i));
+      }
+      for (int i = 0; i < count; i++)
+      {
+         writeSignedVarInt(out, entities.animationPeriod(i));
+      }
+      for (int i = 0; i < count; i++)
+      {
+         writeString(out, entities.id(i));
+      }
+   }
+
+   /**
+    * Reads the body of a world snapshot into a new world. Entities keep
+    * their table order.
+    */
+   public static WorldModel readWorld(ByteBuffer in, ImageStore imageStore)
+      throws IOException
+   {
+      try
+      {
+         int numRows = readVarInt(in);
+         int numCols = readVarInt(in);
+
+         Background palette[] = new Background[readVarInt(in)];
+         for (int i = 0; i < palette.length; i++)
+         {
+            String id = readString(in);
+            palette[i] = new Background(id, imageStore.getImageList(id));
+            palette[i].imageIndex = readVarInt(in);
+         }
+
+         int runs = readVarInt(in);
+         WorldModel world = null;
+         int cell = 0;
+         for (int run = 0; run < runs; run++)
+         {
+            Background background = palette[readVarInt(in)];
+            int length = readVarInt(in);
+            if (world == null)
+            {
+               // the first run is usually the most common background
+               world = new WorldModel(numRows, numCols, background);
+            }
+            if (length > numRows * numCols - cell)
+            {
+               throw new IOException("background runs past the world");
+            }
+
+            for (int end = cell + length; cell < end; )
+            {
+               int y = cell / numCols;
+               int x = cell % numCols;
+               int row = Math.min(end - cell, numCols - x);
+               world.fillBackground(x, y, row, background);
+               cell += row;
+            }
+         }
+         if (world == null || cell != numRows * numCols)
+         {
+            throw new IOException("background runs do not cover the world");
+         }
+
+         int sprites[] = new int[readVarInt(in)];
+         for (int i = 0; i < sprites.length; i++)
+         {
+            String key = readString(in);
+            sprites[i] = key == null
+                    ? ImageStore.DEFAULT_SPRITE
+                    : imageStore.getSprite(key);
+         }
+
+         int count = readVarInt(in);
+         if (count > in.remaining())
+         {
+            throw new IOException("entities run past the end of the snapshot");
+         }
+         byte kind[] = new byte[count];
+         in.get(kind);
+         int x[] = readVarInts(in, count);
+         int y[] = readVarInts(in, count);
+         int sprite[] = readVarInts(in, count);
+         int resourceLimit[] = readSignedVarInts(in, count);
+         int resourceCount[] = readSignedVarInts(in, count);
+         int actionPeriod[] = readSignedVarInts(in, count);
+         int animationPeriod[] = readSignedVarInts(in, count);
+
+         for (int i = 0; i < count; i++)
+         {
+            Entity entity = new Entity(world.entities, KINDS[kind[i]],
+                    readString(in), new Point(x[i], y[i]),
+                    sprites[sprite[i]], resourceLimit[i], resourceCount[i],
+                    actionPeriod[i], animationPeriod[i]);
+            entity.tryAddEntity(world);
+         }
+
+         return world;
+      }
+      catch (BufferUnderflowException | IndexOutOfBoundsException |
+              NegativeArraySizeException | IllegalArgumentException e)
+      {
+         throw new IOException("corrupt snapshot", e);
+      }
+   }
+
+   /**
+    * Checks the header of the given file, which must have all of the
+    * given flags set, and returns its body: mapped if it is not
+    * compressed and inflated into memory if it is.
+    */
+   public static ByteBuffer readBody(String filename, int flags)
+      throws IOException
+   {
+      try (FileChannel channel = FileChannel.open(Path.of(filename),
+              StandardOpenOption.READ))
+      {
+         if (channel.size() > Integer.MAX_VALUE)
+         {
+            throw new IOException(filename + " is too large to map");
+         }
+         ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+         while (header.hasRemaining() && channel.read(header) >= 0)
+         {
+         }
+         header.flip();
+         if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC)
+         {
+            throw new IOException(filename + " is not a world snapshot");
+         }
+         int version = header.getShort();
+         if (version != VERSION)
+         {
+            throw new IOException(String.format(
+                    "unsupported snapshot version %d", version));
+         }
+
+         int fileFlags = header.get();
+         if ((fileFlags & flags) != flags)
+         {
+            throw new IOException(filename + " is not a checkpoint");
+         }
+         if ((fileFlags & FLAG_GZIP) != 0)
+         {
+            return ByteBuffer.wrap(new GZIPInputStream(
+                    Channels.newInputStream(channel), BUFFER_SIZE)
+                    .readAllBytes());
+         }
+         return channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES,
+                 channel.size() - HEADER_BYTES);
+      }
+   }
+
+   /* unsigned LEB128: seven bits a byte, low bits first */
+
+   public static void writeVarInt(DataOutputStream out, int value)
+      throws IOException
+   {
+      while ((value & ~0x7f) != 0)
+      {
+         out.writeByte((value & 0x7f) | 0x80);
+         value >>>= 7;
+      }
+      out.writeByte(value);
+   }
+
+   /* zigzag, so small negative numbers stay short too */
+
+   public static void writeSignedVarInt(DataOutputStream out, int value)
+      throws IOException
+   {
+      writeVarInt(out, (value << 1) ^ (value >> 31));
+   }
+
+   public static void writeSignedVarLong(DataOutputStream out, long value)
+      throws IOException
+   {
+      value = (value << 1) ^ (value >> 63);
+      while ((value & ~0x7fL) != 0)
+      {
+         out.writeByte((int) (value & 0x7f) | 0x80);
+         value >>>= 7;
+      }
+      out.writeByte((int) value);
+   }
+
+   /*
+      A null string is written as length 0, any other as its UTF-8
+      length plus one followed by the bytes.
+   */
+   public static void writeString(DataOutputStream out, String value)
+      throws IOException
+   {
+      if (value == null)
+      {
+         writeVarInt(out, 0);
+         return;
+      }
+      byte bytes[] = value.getBytes(StandardCharsets.UTF_8);
+      writeVarInt(out, bytes.length + 1);
+      out.write(bytes);
+   }
+
+   public static int readVarInt(ByteBuffer in)
+      throws IOException
+   {
+      int value = 0;
+      for (int shift = 0; shift < Integer.SIZE; shift += 7)
+      {
+         byte b = in.get();
+         value |= (b & 0x7f) << shift;
+         if (b >= 0)
+         {
+            return value;
+         }
+      }
+      throw new IOException("malformed variable-length integer");
+   }
+
+   public static int readSignedVarInt(ByteBuffer in)
+      throws IOException
+   {
+      int value = readVarInt(in);
+      return (value >>> 1) ^ -(value & 1);
+   }
+
+   public static long readSignedVarLong(ByteBuffer in)
+      throws IOException
+   {
+      long value = 0;
+      for (int shift = 0; shift < Long.SIZE; shift += 7)
+      {
+         byte b = in.get();
+         value |= (long) (b & 0x7f) << shift;
+         if (b >= 0)
+         {
+            return (value >>> 1) ^ -(value & 1);
+         }
+      }
+      throw new IOException("malformed variable-length integer");
+   }
+
+   public static String readString(ByteBuffer in)
+      throws IOException
+   {
+      int length = readVarInt(in) - 1;
+      if (length < 0)
+      {
+         return null;
+      }
+      if (length > in.remaining())
+      {
+         throw new IOException("string runs past the end of the snapshot");
+      }
+      byte bytes[] = new byte[length];
+      in.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   private static int[] readVarInts(ByteBuffer in, int count)
+      throws IOException
+   {
+      int values[] = new int[count];
+      for (int i = 0; i < count; i++)
+      {
+         values[i] = readVarInt(in);
+      }
+      return values;
+   }
+
+   private static int[] readSignedVarInts(ByteBuffer in, int count)
+      throws IOException
+   {
+      int values[] = new int[count];
+      for (int i = 0; i < count; i++)
+      {
+         values[i] = readSignedVarInt(in);
+      }
+      return values;
+   }
+}
@@ -0,0 +1,306 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Index of the entities of one kind, bucketed by position into square
+ * blocks of cells. WorldModel keeps one per EntityKind up to date as
+ * entities are added, moved and removed, so nearest-entity searches
+ * only look at the blocks around the query point.
+ *
+ * Entities at the same distance are ordered by row and then by column,
+ * the same tie-breaking WorldModel.nearestEntity uses.
+ */
+public final class SpatialIndex
+{
+   private static final int BUCKET_SHIFT = 3;
+   private static final int BUCKET_SIZE = 1 << BUCKET_SHIFT;
+
+   private int bucketRows;
+   private int bucketCols;
+   private List<List<Entity>> buckets;
+   private int size;
+
+   public SpatialIndex(int numRows, int numCols)
+   {
+      this.bucketRows = (numRows + BUCKET_SIZE - 1) >> BUCKET_SHIFT;
+      this.bucketCols = (numCols + BUCKET_SIZE - 1) >> BUCKET_SHIFT;
+      this.buckets = new ArrayList<>(this.bucketRows * this.bucketCols);
+      for (int i = 0; i < this.bucketRows * this.bucketCols; i++)
+      {
+         this.buckets.add(null);
+      }
+   }
+
+   public int size()
+   {
+      return this.size;
+   }
+
+   public void add(Entity entity, Point pos)
+   {
+      int index = bucketIndex(pos);
+      List<Entity> bucket = this.buckets.get(index);
+      if (bucket == null)
+      {
+         bucket = new ArrayList<>();
+         this.buckets.set(index, bucket);
+      }
+      bucket.add(entity);
+      this.size++;
+   }
+
+   public void remove(Entity entity, Point pos)
+   {
+      List<Entity> bucket = this.buckets.get(bucketIndex(pos));
+      if (bucket != null && bucket.remove(entity))
+      {
+         this.size--;
+      }
+   }
+
+   public void move(Entity entity, Point from, Point to)
+   {
+      if (bucketIndex(from) != bucketIndex(to))
+      {
+         remove(entity, from);
+         add(entity, to);
+      }
+   }
+
+   /**
+    * Finds the entity nearest to the given point.
+    */
+   public Optional<Entity> nearest(Point pos)
+   {
+      Entity best = null;
+      int bestDistance = Integer.MAX_VALUE;
+
+      if (this.size == 0)
+      {
+         return Optional.empty();
+      }
+
+      int bx = bucketCol(pos.x);
+      int by = bucketRow(pos.y);
+      int maxRing = maxRing(bx, by);
+
+      for (int ring = 0; ring <= maxRing; ring++)
+      {
+         if (best != null && ringDistance(ring) > bestDistance)
+         {
+            break;
+         }
+
+         for (int y = by - ring; y <= by + ring; y++)
+         {
+            int step = (y == by - ring || y == by + ring) ? 1 : 2 * ring;
+            for (int x = bx - ring; x <= bx + ring; x += step)
+            {
+               List<Entity> bucket = bucket(x, y);
+               if (bucket == null)
+               {
+                  continue;
+               }
+
+               for (Entity entity : bucket)
+               {
+                  int ex = entity.getX();
+                  int ey = entity.getY();
+                  int distance = distanceSquared(ex, ey, pos);
+                  if (best == null ||
+                          closer(distance, ex, ey,
+                                  bestDistance, best.getX(), best.getY()))
+                  {
+                     best = entity;
+                     bestDistance = distance;
+                  }
+               }
+            }
+         }
+      }
+
+      return Optional.ofNullable(best);
+   }
+
+   /**
+    * Finds up to k entities nearest to the given point, nearest first.
+    */
+   public List<Entity> nearest(Point pos, int k)
+   {
+      List<Entity> found = new ArrayList<>(k);
+      if (this.size == 0 || k <= 0)
+      {
+         return found;
+      }
+
+      int bx = bucketCol(pos.x);
+      int by = bucketRow(pos.y);
+      int maxRing = maxRing(bx, by);
+      Comparator<Entity> order = order(pos);
+
+      for (int ring = 0; ring <= maxRing; ring++)
+      {
+         if (found.size() == k && ringDistance(ring) >
+                 distanceSquared(found.get(k - 1), pos))
+         {
+            break;
+         }
+
+         for (int y = by - ring; y <= by + ring; y++)
+         {
+            int step = (y == by - ring || y == by + ring) ? 1 : 2 * ring;
+            for (int x = bx - ring; x <= bx + ring; x += step)
+            {
+               List<Entity> bucket = bucket(x, y);
+               if (bucket == null)
+               {
+                  continue;
+               }
+
+               for (Entity entity : bucket)
+               {
+                  insertOrdered(found, entity, k, order);
+               }
+            }
+         }
+      }
+
+      return found;
+   }
+
+   /**
+    * Finds every entity within the given radius of the point, nearest
+    * first.
+    */
+   public List<Entity> within(Point pos, int radius)
+   {
+      List<Entity> found = new ArrayList<>();
+      int radiusSquared = radius * radius;
+
+      for (int y = bucketRow(pos.y - radius); y <= bucketRow(pos.y + radius); y++)
+      {
+         for (int x = bucketCol(pos.x - radius); x <= bucketCol(pos.x + radius); x++)
+         {
+            List<Entity> bucket = bucket(x, y);
+            if (bucket == null)
+            {
+               continue;
+            }
+
+            for (Entity entity : bucket)
+            {
+               if (distanceSquared(entity, pos) <= radiusSquared)
+               {
+                  found.add(entity);
+               }
+            }
+         }
+      }
+
+      found.sort(order(pos));
+      return found;
+   }
+
+   /**
+    * Checks if an entity at distance d1 and position (x1, y1) comes
+    * before one at distance d2 and position (x2, y2).
+    */
+   public static boolean closer(int d1, int x1, int y1,
+      int d2, int x2, int y2)
+   {
+      return d1 < d2 || (d1 == d2 && (y1 < y2 || (y1 == y2 && x1 < x2)));
+   }
+
+   private static Comparator<Entity> order(Point pos)
+   {
+      return (lft, rht) ->
+      {
+         int dl = distanceSquared(lft, pos);
+         int dr = distanceSquared(rht, pos);
+         if (closer(dl, lft.getX(), lft.getY(), dr, rht.getX(), rht.getY()))
+         {
+            return -1;
+         }
+         return closer(dr, rht.getX(), rht.getY(), dl, lft.getX(), lft.getY())
+                 ? 1 : 0;
+      };
+   }
+
+   private static void insertOrdered(List<Entity> found, Entity entity,
+      int k, Comparator<Entity> order)
+   {
+      int i = found.size();
+      while (i > 0 && order.compare(entity, found.get(i - 1)) < 0)
+      {
+         i--;
+      }
+
+      if (i < k)
+      {
+         found.add(i, entity);
+         if (found.size() > k)
+         {
+            found.remove(k);
+         }
+      }
+   }
+
+   /*
+      Smallest squared distance from a point to any cell in the ring of
+      buckets at the given Chebyshev distance from the point's bucket.
+   */
+   private static int ringDistance(int ring)
+   {
+      if (ring == 0)
+      {
+         return 0;
+      }
+      int gap = (ring - 1) * BUCKET_SIZE + 1;
+      return gap * gap;
+   }
+
+   private int maxRing(int bx, int by)
+   {
+      return Math.max(Math.max(bx, this.bucketCols - 1 - bx),
+              Math.max(by, this.bucketRows - 1 - by));
+   }
+
+   private List<Entity> bucket(int x, int y)
+   {
+      if (x < 0 || x >= this.bucketCols || y < 0 || y >= this.bucketRows)
+      {
+         return null;
+      }
+      return this.buckets.get(y * this.bucketCols + x);
+   }
+
+   private int bucketIndex(Point pos)
+   {
+      return bucketRow(pos.y) * this.bucketCols + bucketCol(pos.x);
+   }
+
+   private int bucketCol(int x)
+   {
+      return Math.min(Math.max(x, 0) >> BUCKET_SHIFT, this.bucketCols - 1);
+   }
+
+   private int bucketRow(int y)
+   {
+      return Math.min(Math.max(y, 0) >> BUCKET_SHIFT, this.bucketRows - 1);
+   }
+
+   private static int distanceSquared(Entity entity, Point pos)
+   {
+      return distanceSquared(entity.getX(), entity.getY(), pos);
+   }
+
+   private static int distanceSquared(int x, int y, Point pos)
+   {
+      int deltaX = x - pos.x;
+      int deltaY = y - pos.y;
+
+      return deltaX * deltaX + deltaY * deltaY;
+   }
+}
@@ -0,0 +1,148 @@
+import java.util.List;
+
+import processing.core.PConstants;
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+/**
+ * Every sprite frame packed into one image. A sprite is known by an int
+ * id and its frames by ints numbered across the whole atlas, so drawing
+ * a frame is a lookup into flat arrays of rectangles and always takes
+ * its pixels from the same image.
+ *
+ * Frames are packed on shelves: left to right until the row is full,
+ * then on a new row below the tallest frame of the last one.
+ */
+public final class SpriteAtlas
+{
+   private static final int MAX_WIDTH = 1024;
+
+   private PImage image;
+
+   /* per sprite */
+   private int firstFrame[];
+   private int frameCount[];
+
+   /* per frame */
+   private int frameX[];
+   private int frameY[];
+   private int frameWidth[];
+   private int frameHeight[];
+
+   /**
+    * Packs the given sprites, each a list of frames; sprite ids are
+    * indices into the list.
+    */
+   public SpriteAtlas(List<List<PImage>> sprites)
+   {
+      int frames = 0;
+      int width = MAX_WIDTH;
+      for (List<PImage> sprite : sprites)
+      {
+         frames += sprite.size();
+         for (PImage frame : sprite)
+         {
+            width = Math.max(width, frame.width);
+         }
+      }
+
+      this.firstFrame = new int[sprites.size()];
+      this.frameCount = new int[sprites.size()];
+      this.frameX = new int[frames];
+      this.frameY = new int[frames];
+      this.frameWidth = new int[frames];
+      this.frameHeight = new int[frames];
+
+      int x = 0;
+      int y = 0;
+      int shelfHeight = 0;
+      int frame = 0;
+      for (int sprite = 0; sprite < sprites.size(); sprite++)
+      {
+         this.firstFrame[sprite] = frame;
+         this.frameCount[sprite] = sprites.get(sprite).size();
+         for (PImage img : sprites.get(sprite))
+         {
+            if (x + img.width > width)
+            {
+               x = 0;
+               y += shelfHeight;
+               shelfHeight = 0;
+            }
+            this.frameX[frame] = x;
+            this.frameY[frame] = y;
+            this.frameWidth[frame] = img.width;
+            this.frameHeight[frame] = img.height;
+            x += img.width;
+            shelfHeight = Math.max(shelfHeight, img.height);
+            frame++;
+         }
+      }
+
+      this.image = new PImage(width, Math.max(1, y + shelfHeight),
+              PConstants.ARGB);
+      frame = 0;
+      for (List<PImage> sprite : sprites)
+      {
+         for (PImage img : sprite)
+         {
+            copyFrame(img, frame++);
+         }
+      }
+      this.image.updatePixels();
+   }
+
+   public int getSpriteCount()
+   {
+      return this.firstFrame.length;
+   }
+
+   public int getFrameCount(int sprite)
+   {
+      return this.frameCount[sprite];
+   }
+
+   /**
+    * Gets the atlas-wide number of the given frame of a sprite.
+    */
+   public int getFrame(int sprite, int index)
+   {
+      return this.firstFrame[sprite] + index;
+   }
+
+   public PImage getImage()
+   {
+      return this.image;
+   }
+
+   /**
+    * Draws the given frame with its top left corner at (x, y), at its
+    * own size.
+    */
+   public void draw(PGraphics g, int frame, float x, float y)
+   {
+      int u = this.frameX[frame];
+      int v = this.frameY[frame];
+      int w = this.frameWidth[frame];
+      int h = this.frameHeight[frame];
+      g.image(this.image, x, y, w, h, u, v, u + w, v + h);
+   }
+
+   private void copyFrame(PImage img, int frame)
+   {
+      img.loadPixels();
+      // images without an alpha channel may leave garbage in its place
+      int opaque = img.format == PConstants.ARGB ? 0 : 0xff000000;
+      int w = this.frameWidth[frame];
+      for (int row = 0; row < this.frameHeight[frame]; row++)
+      {
+         int from = row * w;
+         int to = (this.frameY[frame] + row) * this.image.width +
+                 this.frameX[frame];
+         for (int col = 0; col < w; col++)
+         {
+            this.image.pixels[to + col] = img.pixels[from + col] | opaque;
+         }
+      }
+   }
+}
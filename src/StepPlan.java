@@ -0,0 +1,35 @@
+/**
+ * The next move of a miner seeking ore or an ore blob seeking a vein,
+ * worked out from the world without changing it. A plan made ahead of
+ * time is only used if nothing has changed within readRadius of the
+ * entity since mutationCount, which is everything the plan looked at.
+ */
+public final class StepPlan
+{
+   public static final int WHOLE_WORLD = -1;
+
+   /* the nearest target, or null if there is none */
+   public Entity target;
+
+   /* where to step, or null if the entity is already beside the target */
+   public Point nextPos;
+
+   public int readRadius;
+   public long mutationCount;
+
+   /* the entity's path cache as it will be after the step */
+   public int path[];
+   public int pathStep;
+   public int pathTarget;
+   public int pathRetry;
+
+   public StepPlan(long mutationCount, int path[], int pathStep,
+      int pathTarget, int pathRetry)
+   {
+      this.mutationCount = mutationCount;
+      this.path = path;
+      this.pathStep = pathStep;
+      this.pathTarget = pathTarget;
+      this.pathRetry = pathRetry;
+   }
+}
@@ -0,0 +1,16 @@
+/**
+ * Clock that follows wall time, as used by the interactive world.
+ */
+public final class SystemClock
+   implements SimulationClock
+{
+   public long currentTime()
+   {
+      return System.currentTimeMillis();
+   }
+
+   public void advanceTo(long time)
+   {
+      // wall time cannot be moved
+   }
+}
@@ -0,0 +1,352 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Scheduler that keeps its events in a hierarchical timing wheel with
+ * one millisecond ticks. Each of the LEVELS wheels has 256 slots and
+ * covers 256 times the span of the level below it, so scheduling and
+ * expiring an event costs O(1) instead of O(log n). Events further out
+ * than the top wheel wait in a small overflow heap.
+ *
+ * Each slot is a list of events chained through the event pool. Events
+ * that fall in the same millisecond run in the order they were
+ * scheduled, which gives the same results as HeapEventScheduler.
+ */
+public final class TimingWheelEventScheduler
+   extends AbstractEventScheduler
+{
+   private static final int LEVELS = 4;
+   private static final int SLOT_BITS = 8;
+   private static final int SLOTS = 1 << SLOT_BITS;
+   private static final int SLOT_MASK = SLOTS - 1;
+   private static final int WORDS_PER_LEVEL = SLOTS / Long.SIZE;
+   private static final int WHEEL_BITS = LEVELS * SLOT_BITS;
+   private static final int INITIAL_BATCH_CAPACITY = 64;
+
+   private static final int NONE = EventPool.NONE;
+
+   private int head[];
+   private int tail[];
+   private long occupied[];
+   private EventHeap overflow;
+   private int batch[];
+   private int size;
+
+   /* the next tick that has not been run yet */
+   private long current;
+
+   public TimingWheelEventScheduler(double timeScale, SimulationClock clock)
+   {
+      super(timeScale, clock);
+      this.head = new int[LEVELS * SLOTS];
+      this.tail = new int[LEVELS * SLOTS];
+      Arrays.fill(this.head, NONE);
+      Arrays.fill(this.tail, NONE);
+      this.occupied = new long[LEVELS * WORDS_PER_LEVEL];
+      this.overflow = new EventHeap(this.pool);
+      this.batch = new int[INITIAL_BATCH_CAPACITY];
+      this.current = clock.currentTime();
+   }
+
+   public long nextEventTime()
+   {
+      cascade();
+      for (int level = 0; level < LEVELS; level++)
+      {
+         int slot = nextOccupiedSlot(level);
+         if (slot >= 0)
+         {
+            long earliest = Long.MAX_VALUE;
+            for (int event = this.head[level * SLOTS + slot]; event != NONE;
+                 event = this.pool.next(event))
+            {
+               earliest = Math.min(earliest, this.pool.time(event));
+            }
+            return earliest;
+         }
+      }
+
+      return this.overflow.isEmpty() ? Long.MAX_VALUE
+              : this.pool.time(this.overflow.peek());
+   }
+
+   protected void runUntil(long time)
+   {
+      while (true)
+      {
+         cascade();
+
+         long next = nextOccupiedTick();
+         if (next >= time)
+         {
+            /* nothing is due before time, so it is safe to skip to it */
+            this.current = Math.max(this.current, time);
+            return;
+         }
+
+         if (next > this.current)
+         {
+            this.current = next;
+            continue;
+         }
+
+         runCurrentSlot();
+         this.current++;
+      }
+   }
+
+   /*
+      The slots of each level are in time order, so the walk stops at the
+      first slot whose span starts at or after the given time.
+   */
+   protected void collectDueEvents(long time, List<Entity> due)
+   {
+      cascade();
+      for (int level = 0; level < LEVELS; level++)
+      {
+         int shift = (level + 1) * SLOT_BITS;
+         long base = (this.current >>> shift) << shift;
+         for (int slot = nextOccupiedSlot(level); slot >= 0 &&
+                 (base | ((long)slot << (level * SLOT_BITS))) < time;
+              slot = nextOccupiedSlot(level, slot + 1))
+         {
+            for (int event = this.head[level * SLOTS + slot]; event != NONE;
+                 event = this.pool.next(event))
+            {
+               if (this.pool.time(event) < time)
+               {
+                  this.pool.collectDue(event, due);
+               }
+            }
+         }
+      }
+
+      this.overflow.collectDue(time, due);
+   }
+
+   protected void enqueue(int event)
+   {
+      this.size++;
+      insert(event);
+   }
+
+   protected int size()
+   {
+      return this.size;
+   }
+
+   protected void compact()
+   {
+      for (int index = 0; index < LEVELS * SLOTS; index++)
+      {
+         int event = detach(index);
+         while (event != NONE)
+         {
+            int following = this.pool.next(event);
+            if (this.pool.isCancelled(event))
+            {
+               this.size--;
+               this.pool.free(event);
+            }
+            else
+            {
+               append(index, event);
+            }
+            event = following;
+         }
+      }
+
+      this.size -= this.overflow.size();
+      this.overflow.removeCancelled();
+      this.size += this.overflow.size();
+   }
+
+   private void insert(int event)
+   {
+      long time = Math.max(this.pool.time(event), this.current);
+      long diff = time ^ this.current;
+
+      if ((diff >>> WHEEL_BITS) != 0)
+      {
+         this.overflow.add(event);
+         return;
+      }
+
+      int level = diff == 0 ? 0
+              : (Long.SIZE - 1 - Long.numberOfLeadingZeros(diff)) / SLOT_BITS;
+      append(level * SLOTS + digit(time, level), event);
+   }
+
+   private void append(int index, int event)
+   {
+      this.pool.setNext(event, NONE);
+      if (this.tail[index] == NONE)
+      {
+         this.head[index] = event;
+         this.occupied[index / Long.SIZE] |= 1L << (index % Long.SIZE);
+      }
+      else
+      {
+         this.pool.setNext(this.tail[index], event);
+      }
+      this.tail[index] = event;
+   }
+
+   /*
+      Empties the slot and returns the first event of its old chain.
+   */
+   private int detach(int index)
+   {
+      int first = this.head[index];
+      this.head[index] = NONE;
+      this.tail[index] = NONE;
+      this.occupied[index / Long.SIZE] &= ~(1L << (index % Long.SIZE));
+      return first;
+   }
+
+   /*
+      Runs every event in the level 0 slot for the current tick, in the
+      order they were scheduled. Events scheduled for this same tick
+      while the slot runs are picked up on the next pass of the loop.
+   */
+   private void runCurrentSlot()
+   {
+      int index = digit(this.current, 0);
+
+      while (this.head[index] != NONE)
+      {
+         int count = 0;
+         for (int event = detach(index); event != NONE;
+              event = this.pool.next(event))
+         {
+            if (count == this.batch.length)
+            {
+               this.batch = Arrays.copyOf(this.batch, count * 2);
+            }
+            this.batch[count++] = event;
+         }
+         sortBatch(count);
+         this.size -= count;
+
+         for (int i = 0; i < count; i++)
+         {
+            dispatch(this.batch[i]);
+         }
+      }
+   }
+
+   /*
+      Insertion sort by schedule order. Slots are filled in schedule
+      order almost always, so this is close to a single pass.
+   */
+   private void sortBatch(int count)
+   {
+      for (int i = 1; i < count; i++)
+      {
+         int event = this.batch[i];
+         int j = i - 1;
+         while (j >= 0 && this.pool.before(event, this.batch[j]))
+         {
+            this.batch[j + 1] = this.batch[j];
+            j--;
+         }
+         this.batch[j + 1] = event;
+      }
+   }
+
+   /*
+      Moves events down from the higher wheels (and the overflow heap)
+      once the current tick has reached the span of their slot.
+   */
+   private void cascade()
+   {
+      while (!this.overflow.isEmpty() &&
+              ((this.pool.time(this.overflow.peek()) ^ this.current)
+                      >>> WHEEL_BITS) == 0)
+      {
+         insert(this.overflow.poll());
+      }
+
+      for (int level = LEVELS - 1; level > 0; level--)
+      {
+         int index = level * SLOTS + digit(this.current, level);
+         if (isOccupied(index))
+         {
+            int event = detach(index);
+            while (event != NONE)
+            {
+               int following = this.pool.next(event);
+               insert(event);
+               event = following;
+            }
+         }
+      }
+   }
+
+   /*
+      Gets the earliest tick at which some slot needs attention: the
+      exact time for level 0, or the start of a higher slot's span.
+   */
+   private long nextOccupiedTick()
+   {
+      for (int level = 0; level < LEVELS; level++)
+      {
+         int slot = nextOccupiedSlot(level);
+         if (slot >= 0)
+         {
+            int shift = (level + 1) * SLOT_BITS;
+            return ((this.current >>> shift) << shift) |
+                    ((long)slot << (level * SLOT_BITS));
+         }
+      }
+
+      if (!this.overflow.isEmpty())
+      {
+         return (this.pool.time(this.overflow.peek()) >>> WHEEL_BITS)
+                 << WHEEL_BITS;
+      }
+
+      return Long.MAX_VALUE;
+   }
+
+   /*
+      Finds the first occupied slot of the level that is still ahead of
+      the current tick, or -1. Higher level slots at the current digit
+      have already been cascaded, so the search starts after it.
+   */
+   private int nextOccupiedSlot(int level)
+   {
+      return nextOccupiedSlot(level,
+              digit(this.current, level) + (level == 0 ? 0 : 1));
+   }
+
+   /*
+      Finds the first occupied slot of the level at or after the given
+      one, or -1.
+   */
+   private int nextOccupiedSlot(int level, int from)
+   {
+      for (int slot = from; slot < SLOTS; )
+      {
+         int index = level * SLOTS + slot;
+         long word = this.occupied[index / Long.SIZE] >>> (index % Long.SIZE);
+         if (word != 0)
+         {
+            return slot + Long.numberOfTrailingZeros(word);
+         }
+         slot = (slot / Long.SIZE + 1) * Long.SIZE;
+      }
+
+      return -1;
+   }
+
+   private boolean isOccupied(int index)
+   {
+      return (this.occupied[index / Long.SIZE] & (1L << (index % Long.SIZE))) != 0;
+   }
+
+   private static int digit(long time, int level)
+   {
+      return (int)(time >>> (level * SLOT_BITS)) & SLOT_MASK;
+   }
+}
@@ -0,0 +1,71 @@
+/**
+ * The wall time one scheduler update may spend, and counters of how
+ * far the simulation has fallen behind because of it.
+ *
+ * Nothing is shed or coalesced when an update runs out of budget: every
+ * event that does not fit carries over and runs, in order, on a later
+ * update. Animation no longer goes through the queue, so all queued
+ * events are activities and none of them can be dropped.
+ */
+public final class UpdateBudget
+{
+   private long budget;
+   private long deadline;
+   private long lag;
+   private long maxLag;
+   private long overrunCount;
+
+   /**
+    * Sets the budget in nanoseconds; 0 means no limit.
+    */
+   public void setBudget(long budget)
+   {
+      this.budget = budget;
+   }
+
+   public boolean isLimited()
+   {
+      return this.budget > 0;
+   }
+
+   /**
+    * Starts timing an update.
+    */
+   public void start()
+   {
+      this.deadline = System.nanoTime() + this.budget;
+      this.lag = 0;
+   }
+
+   /**
+    * Checks if the update has used up its budget. If so, records that
+    * the update asked to reach time but stopped with work due at next.
+    */
+   public boolean exhausted(long time, long next)
+   {
+      if (this.budget <= 0 || System.nanoTime() < this.deadline)
+      {
+         return false;
+      }
+
+      this.lag = time - next;
+      this.maxLag = Math.max(this.maxLag, this.lag);
+      this.overrunCount++;
+      return true;
+   }
+
+   public long getLag()
+   {
+      return this.lag;
+   }
+
+   public long getMaxLag()
+   {
+      return this.maxLag;
+   }
+
+   public long getOverrunCount()
+   {
+      return this.overrunCount;
+   }
+}
@@ -5,6 +5,10 @@ public final class Viewport
    public int numRows;
    public int numCols;
 
+   /* each tile shows a block 2^zoom cells on a side; col and row are
+      cells, kept on block boundaries */
+   public int zoom;
+
    public Viewport(int numRows, int numCols)
    {
       this.numRows = numRows;
@@ -20,13 +24,36 @@ public final class Viewport
       this.row = row;
    }
 
+   public void zoom(int zoom)
+   {
+      this.zoom = zoom;
+   }
+
+   /**
+    * Gets the number of world columns the viewport covers.
+    */
+   public int getWorldCols()
+   {
+      return this.numCols << this.zoom;
+   }
+
+   public int getWorldRows()
+   {
+      return this.numRows << this.zoom;
+   }
+
    /**
     * Check if the viewport contains the specified Point p.
     */
    public boolean contains(Point p)
    {
-      return p.y >= this.row && p.y < this.row + this.numRows &&
-              p.x >= this.col && p.x < this.col + this.numCols;
+      return contains(p.x, p.y);
+   }
+
+   public boolean contains(int x, int y)
+   {
+      return y >= this.row && y < this.row + getWorldRows() &&
+              x >= this.col && x < this.col + getWorldCols();
    }
 
 
@@ -41,8 +68,8 @@ public final class Viewport
    }
    public void drawViewport(WorldView view)
    {
-      view.drawBackground();
-      view.drawEntities();
+      view.drawDirtyTiles();
+      view.drawBuffer();
    }
 
 }
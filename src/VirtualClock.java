@@ -0,0 +1,27 @@
+/**
+ * Clock that only moves when told to, so that a simulation can jump
+ * straight from one event time to the next.
+ */
+public final class VirtualClock
+   implements SimulationClock
+{
+   private long time;
+
+   public VirtualClock(long startTime)
+   {
+      this.time = startTime;
+   }
+
+   public long currentTime()
+   {
+      return this.time;
+   }
+
+   public void advanceTo(long time)
+   {
+      if (time > this.time)
+      {
+         this.time = time;
+      }
+   }
+}
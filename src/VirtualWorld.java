@@ -1,31 +1,36 @@
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.Scanner;
 import processing.core.*;
 
 public final class VirtualWorld
    extends PApplet
 {
-   private  final int TIMER_ACTION_PERIOD = 100;
+   private static final int VIEW_WIDTH = 640;
+   private static final int VIEW_HEIGHT = 480;
+   private static final int TILE_WIDTH = 32;
+   private static final int TILE_HEIGHT = 32;
+   private static final int WORLD_WIDTH_SCALE = 2;
+   private static final int WORLD_HEIGHT_SCALE = 2;
 
-   private  final int VIEW_WIDTH = 640;
-   private  final int VIEW_HEIGHT = 480;
-   private  final int TILE_WIDTH = 32;
-   private  final int TILE_HEIGHT = 32;
-   private  final int WORLD_WIDTH_SCALE = 2;
-   private  final int WORLD_HEIGHT_SCALE = 2;
+   private static final int VIEW_COLS = VIEW_WIDTH / TILE_WIDTH;
+   private static final int VIEW_ROWS = VIEW_HEIGHT / TILE_HEIGHT;
+   private static final int WORLD_COLS = VIEW_COLS * WORLD_WIDTH_SCALE;
+   private static final int WORLD_ROWS = VIEW_ROWS * WORLD_HEIGHT_SCALE;
 
-   private  final int VIEW_COLS = VIEW_WIDTH / TILE_WIDTH;
-   private  final int VIEW_ROWS = VIEW_HEIGHT / TILE_HEIGHT;
-   private  final int WORLD_COLS = VIEW_COLS * WORLD_WIDTH_SCALE;
-   private  final int WORLD_ROWS = VIEW_ROWS * WORLD_HEIGHT_SCALE;
-
-   private  final String IMAGE_LIST_FILE_NAME = "imagelist";
+   private static final String IMAGE_LIST_FILE_NAME = "imagelist";
    private static final String DEFAULT_IMAGE_NAME = "background_default";
-   private  final int DEFAULT_IMAGE_COLOR = 0x808080;
+   private static final int DEFAULT_IMAGE_COLOR = 0x808080;
 
    private static final String LOAD_FILE_NAME = "gaia.sav";
 
+   private static final int FRAME_RATE = 60;
+
+   private static final char ZOOM_OUT_KEY = '-';
+   private static final char ZOOM_IN_KEY = '=';
+   private static final char ZOOM_IN_SHIFTED_KEY = '+';
+
    private static final String FAST_FLAG = "-fast";
    private static final String FASTER_FLAG = "-faster";
    private static final String FASTEST_FLAG = "-fastest";
@@ -33,14 +38,46 @@ public final class VirtualWorld
    private static final double FASTER_SCALE = 0.25;
    private static final double FASTEST_SCALE = 0.10;
 
+   private static final String HEADLESS_FLAG = "-headless";
+   private static final String DURATION_FLAG = "-duration";
+   private static final String WHEEL_FLAG = "-wheel";
+   private static final String PARALLEL_FLAG = "-parallel";
+   private static final String PHASED_FLAG = "-phased";
+   private static final String SEED_FLAG = "-seed";
+   private static final String RECORD_FLAG = "-record";
+   private static final String STRIDE_FLAG = "-stride";
+   private static final String RESTORE_FLAG = "-restore";
+   private static final String SAVE_FLAG = "-save";
+   private static final String CHECKPOINT_FLAG = "-checkpoint";
+   private static final String RESUME_FLAG = "-resume";
+   private static final String AUTOSAVE_FLAG = "-autosave";
+   private static final String AUTOSAVE_PERIOD_FLAG = "-autosave-period";
+   private static final long DEFAULT_HEADLESS_DURATION = 60 * 60 * 1000;
+   private static final long DEFAULT_RECORD_STRIDE = 1000;
+   private static final long DEFAULT_AUTOSAVE_PERIOD = 60 * 1000;
+
    private static double timeScale = 1.0;
+   private static boolean headless = false;
+   private static long headlessDuration = DEFAULT_HEADLESS_DURATION;
+   private static boolean timingWheel = false;
+   private static boolean parallel = false;
+   private static boolean phased = false;
+   private static String recordTarget = null;
+   private static long recordStride = DEFAULT_RECORD_STRIDE;
+   private static String restoreFile = null;
+   private static String saveFile = null;
+   private static String checkpointFile = null;
+   private static String resumeFile = null;
+   private static String autosaveFile = null;
+   private static long autosavePeriod = DEFAULT_AUTOSAVE_PERIOD;
 
    private ImageStore imageStore;
    private WorldModel world;
    private WorldView view;
    private EventScheduler scheduler;
-
-   private long next_time;
+   private SimulationThread simulation;
+   private FrameRecorder recorder;
+   private Autosave autosave;
 
    public void settings()
    {
@@ -54,30 +91,60 @@ public final class VirtualWorld
    {
       this.imageStore = new ImageStore(
          createImageColored(TILE_WIDTH, TILE_HEIGHT, DEFAULT_IMAGE_COLOR));
-      this.world = new WorldModel(WORLD_ROWS, WORLD_COLS,
-         createDefaultBackground(imageStore));
-      this.view = new WorldView(VIEW_ROWS, VIEW_COLS, this, world,
-         TILE_WIDTH, TILE_HEIGHT);
-      this.scheduler = new EventScheduler(timeScale);
 
       loadImages(IMAGE_LIST_FILE_NAME, imageStore, this);
-      loadWorld(world, LOAD_FILE_NAME, imageStore);
+      Checkpoint checkpoint = readCheckpoint(imageStore);
+      this.world = checkpoint != null ? checkpoint.getWorld()
+         : createWorld(imageStore);
+      this.scheduler = createScheduler(new SystemClock(), world, imageStore);
+
+      if (checkpoint != null)
+      {
+         checkpoint.resume(scheduler, imageStore);
+      }
+      else
+      {
+         scheduleActions(world, scheduler, imageStore);
+      }
 
-      scheduleActions(world, scheduler, imageStore);
+      // from here on only the simulation thread touches the world
+      this.simulation = new SimulationThread(world, scheduler,
+         VIEW_ROWS, VIEW_COLS);
+      this.view = new WorldView(VIEW_ROWS, VIEW_COLS, this, simulation,
+         scheduler.getClock(), imageStore.getAtlas(), TILE_WIDTH,
+         TILE_HEIGHT);
+      if (recordTarget != null)
+      {
+         this.recorder = createRecorder(VIEW_ROWS, VIEW_COLS, this,
+            imageStore, false);
+         this.simulation.setRecorder(this.recorder);
+      }
+      if (autosaveFile != null)
+      {
+         this.autosave = createAutosave(scheduler, imageStore);
+         this.simulation.setAutosave(this.autosave);
+      }
+      this.simulation.start();
 
-      next_time = System.currentTimeMillis() + TIMER_ACTION_PERIOD;
+      frameRate(FRAME_RATE);
    }
 
    public void draw()
    {
-      long time = System.currentTimeMillis();
-      if (time >= next_time)
+      view.drawFrame();
+   }
+
+   public void dispose()
+   {
+      super.dispose();
+      if (this.recorder != null)
       {
-         scheduler.updateOnTime(time);
-         next_time = time + TIMER_ACTION_PERIOD;
+         this.recorder.close();
+      }
+      if (this.autosave != null)
+      {
+         this.autosave.close();
       }
-
-      view.viewport.drawViewport(view);
    }
 
    public void keyPressed()
@@ -104,6 +171,19 @@ public final class VirtualWorld
          }
          view.shiftView(dx, dy);
       }
+      else if (key == ZOOM_OUT_KEY)
+      {
+         view.zoomView(1);
+      }
+      else if (key == ZOOM_IN_KEY || key == ZOOM_IN_SHIFTED_KEY)
+      {
+         view.zoomView(-1);
+      }
+   }
+
+   public void mousePressed()
+   {
+      view.clickMinimap(mouseX, mouseY);
    }
 
    public static Background createDefaultBackground(ImageStore imageStore)
@@ -143,12 +223,78 @@ public final class VirtualWorld
    {
       try
       {
-         Scanner in = new Scanner(new File(filename));
-         Functions.load(in, world, imageStore);
+         SaveFileLoader.load(filename, world, imageStore);
       }
-      catch (FileNotFoundException e)
+      catch (IOException e)
       {
-         System.err.println(e.getMessage());
+         System.err.println(String.format("cannot load %s: %s", filename,
+            e.getMessage()));
+      }
+   }
+
+   /*
+      Restores the snapshot given on the command line, or failing that
+      makes a world and loads the save file into it.
+   */
+   private static WorldModel createWorld(ImageStore imageStore)
+   {
+      if (restoreFile != null)
+      {
+         try
+         {
+            return WorldModel.restore(restoreFile, imageStore);
+         }
+         catch (IOException e)
+         {
+            System.err.println(String.format("cannot load %s: %s",
+               restoreFile, e.getMessage()));
+         }
+      }
+
+      WorldModel world = new WorldModel(WORLD_ROWS, WORLD_COLS,
+         createDefaultBackground(imageStore));
+      loadWorld(world, LOAD_FILE_NAME, imageStore);
+      return world;
+   }
+
+   /*
+      Writes the world to the snapshot file given on the command line,
+      gzipped if its name ends in SnapshotFile.GZIP_SUFFIX.
+   */
+   private static void saveWorld(WorldModel world, ImageStore imageStore)
+   {
+      try
+      {
+         world.save(saveFile, imageStore,
+            saveFile.endsWith(SnapshotFile.GZIP_SUFFIX));
+      }
+      catch (IOException e)
+      {
+         System.err.println(String.format("cannot save %s: %s", saveFile,
+            e.getMessage()));
+      }
+   }
+
+   /*
+      Reads the checkpoint given on the command line, or returns null if
+      there is none or it cannot be read.
+   */
+   private static Checkpoint readCheckpoint(ImageStore imageStore)
+   {
+      if (resumeFile == null)
+      {
+         return null;
+      }
+
+      try
+      {
+         return Checkpoint.read(resumeFile, imageStore);
+      }
+      catch (IOException e)
+      {
+         System.err.println(String.format("cannot load %s: %s", resumeFile,
+            e.getMessage()));
+         return null;
       }
    }
 
@@ -163,9 +309,9 @@ public final class VirtualWorld
 
    public static void parseCommandLine(String [] args)
    {
-      for (String arg : args)
+      for (int i = 0; i < args.length; i++)
       {
-         switch (arg)
+         switch (args[i])
          {
             case FAST_FLAG:
                timeScale = Math.min(FAST_SCALE, timeScale);
@@ -176,6 +322,229 @@ public final class VirtualWorld
             case FASTEST_FLAG:
                timeScale = Math.min(FASTEST_SCALE, timeScale);
                break;
+            case WHEEL_FLAG:
+               timingWheel = true;
+               break;
+            case PARALLEL_FLAG:
+               parallel = true;
+               break;
+            case PHASED_FLAG:
+               phased = true;
+               break;
+            case SEED_FLAG:
+               if (i + 1 < args.length)
+               {
+                  Entity.setSeed(Long.parseLong(args[++i]));
+               }
+               break;
+            case HEADLESS_FLAG:
+               headless = true;
+               break;
+            case RECORD_FLAG:
+               if (i + 1 < args.length)
+               {
+                  recordTarget = args[++i];
+               }
+               break;
+            case STRIDE_FLAG:
+               if (i + 1 < args.length)
+               {
+                  // stride is given in simulated milliseconds
+                  recordStride = Long.parseLong(args[++i]);
+               }
+               break;
+            case RESTORE_FLAG:
+               if (i + 1 < args.length)
+               {
+                  restoreFile = args[++i];
+               }
+               break;
+            case SAVE_FLAG:
+               if (i + 1 < args.length)
+               {
+                  saveFile = args[++i];
+               }
+               break;
+            case CHECKPOINT_FLAG:
+               if (i + 1 < args.length)
+               {
+                  checkpointFile = args[++i];
+               }
+               break;
+            case RESUME_FLAG:
+               if (i + 1 < args.length)
+               {
+                  resumeFile = args[++i];
+               }
+               break;
+            case AUTOSAVE_FLAG:
+               if (i + 1 < args.length)
+               {
+                  autosaveFile = args[++i];
+               }
+               break;
+            case AUTOSAVE_PERIOD_FLAG:
+               if (i + 1 < args.length)
+               {
+                  // period is given in simulated seconds
+                  autosavePeriod = Long.parseLong(args[++i]) * 1000;
+               }
+               break;
+            case DURATION_FLAG:
+               if (i + 1 < args.length)
+               {
+                  // duration is given in simulated seconds
+                  headlessDuration = Long.parseLong(args[++i]) * 1000;
+               }
+               break;
+         }
+      }
+   }
+
+   /*
+      Creates the scheduler implementation chosen on the command line.
+   */
+   public static EventScheduler createScheduler(SimulationClock clock,
+      WorldModel world, ImageStore imageStore)
+   {
+      if (phased)
+      {
+         return new PhasedTickEngine(timeScale, clock, world, imageStore,
+                 Runtime.getRuntime().availableProcessors());
+      }
+
+      AbstractEventScheduler scheduler;
+      if (timingWheel)
+      {
+         scheduler = new TimingWheelEventScheduler(timeScale, clock);
+      }
+      else
+      {
+         scheduler = new HeapEventScheduler(timeScale, clock);
+      }
+
+      if (parallel)
+      {
+         return new ParallelEventScheduler(scheduler, world,
+                 Runtime.getRuntime().availableProcessors());
+      }
+      return scheduler;
+   }
+
+   /*
+      Makes a PApplet that never opens a window but has graphics of its
+      own, which it needs to make offscreen buffers.
+   */
+   private static PApplet createOffscreenApplet()
+   {
+      PApplet screen = new PApplet();
+      PGraphics graphics = new processing.awt.PGraphicsJava2D();
+      graphics.setParent(screen);
+      graphics.setPrimary(false);
+      graphics.setSize(1, 1);
+      screen.g = graphics;
+      return screen;
+   }
+
+   /*
+      Makes the recorder asked for on the command line, or returns null
+      if its target cannot be written. A blocking recorder keeps every
+      frame, for runs that do not have to keep up with wall time.
+   */
+   private static FrameRecorder createRecorder(int viewRows, int viewCols,
+      PApplet screen, ImageStore imageStore, boolean blocking)
+   {
+      try
+      {
+         return new FrameRecorder(recordTarget, recordStride, viewRows,
+            viewCols, screen, imageStore.getAtlas(), TILE_WIDTH, TILE_HEIGHT,
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+            blocking);
+      }
+      catch (IOException e)
+      {
+         System.err.println(e.getMessage());
+         return null;
+      }
+   }
+
+   /*
+      Makes the autosave asked for on the command line, starting from
+      the scheduler's current time.
+   */
+   private static Autosave createAutosave(EventScheduler scheduler,
+      ImageStore imageStore)
+   {
+      return new Autosave(autosaveFile, autosavePeriod,
+         scheduler.getClock().currentTime(), imageStore);
+   }
+
+   /*
+      Runs the world without a window, on a virtual clock, for the
+      duration given on the command line, and saves it or checkpoints
+      it at the end if asked. The images are only loaded when frames or
+      files need their sprites.
+   */
+   public static void runHeadless()
+   {
+      ImageStore imageStore = new ImageStore(
+         createImageColored(TILE_WIDTH, TILE_HEIGHT, DEFAULT_IMAGE_COLOR));
+
+      PApplet screen = createOffscreenApplet();
+      if (recordTarget != null || saveFile != null ||
+         checkpointFile != null || restoreFile != null ||
+         resumeFile != null || autosaveFile != null)
+      {
+         loadImages(IMAGE_LIST_FILE_NAME, imageStore, screen);
+      }
+      Checkpoint checkpoint = readCheckpoint(imageStore);
+      WorldModel world = checkpoint != null ? checkpoint.getWorld()
+         : createWorld(imageStore);
+      VirtualClock clock = new VirtualClock(
+         checkpoint != null ? checkpoint.getTime() : 0);
+      EventScheduler scheduler = createScheduler(clock, world, imageStore);
+
+      if (checkpoint != null)
+      {
+         checkpoint.resume(scheduler, imageStore);
+      }
+      else
+      {
+         scheduleActions(world, scheduler, imageStore);
+      }
+
+      HeadlessSimulation simulation =
+         new HeadlessSimulation(world, scheduler, clock);
+      if (recordTarget != null)
+      {
+         // a restored or resumed world need not be the default size
+         FrameRecorder recorder = createRecorder(world.numRows,
+            world.numCols, screen, imageStore, true);
+         if (recorder != null)
+         {
+            simulation.setRecorder(recorder);
+         }
+      }
+      if (autosaveFile != null)
+      {
+         simulation.setAutosave(createAutosave(scheduler, imageStore));
+      }
+      simulation.run(headlessDuration);
+
+      if (saveFile != null)
+      {
+         saveWorld(world, imageStore);
+      }
+      if (checkpointFile != null)
+      {
+         try
+         {
+            Checkpoint.write(checkpointFile, world, scheduler, imageStore);
+         }
+         catch (IOException e)
+         {
+            System.err.println(String.format("cannot save %s: %s",
+               checkpointFile, e.getMessage()));
          }
       }
    }
@@ -183,6 +552,13 @@ public final class VirtualWorld
    public static void main(String [] args)
    {
       parseCommandLine(args);
-      PApplet.main(VirtualWorld.class);
+      if (headless)
+      {
+         runHeadless();
+      }
+      else
+      {
+         PApplet.main(VirtualWorld.class);
+      }
    }
 }
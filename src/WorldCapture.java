@@ -0,0 +1,59 @@
+/**
+ * What a world snapshot saves, frozen on the simulation thread so that
+ * another thread can write it out while the world moves on. Nothing is
+ * copied up front: the background grid and the entity table are frozen
+ * through FrozenColumns, which has the world save a page only when it
+ * writes to one the capture has not read yet. A capture must be
+ * released once written.
+ */
+public final class WorldCapture
+{
+   public final int numRows;
+   public final int numCols;
+
+   /* the key of each sprite id, null for the default sprite */
+   public final String spriteKeys[];
+
+   /* the entities in table order */
+   public final EntityStore.Frozen entities;
+
+   private final FrozenColumns background;
+
+   private WorldCapture(WorldModel world, String spriteKeys[])
+   {
+      this.numRows = world.numRows;
+      this.numCols = world.numCols;
+      this.spriteKeys = spriteKeys;
+      this.entities = world.entities.freeze();
+      this.background = world.freezeBackground();
+   }
+
+   /**
+    * Freezes the world. Must be called on the thread that runs the
+    * simulation.
+    */
+   public static WorldCapture capture(WorldModel world, ImageStore imageStore)
+   {
+      String spriteKeys[] = new String[imageStore.getAtlas().getSpriteCount()];
+      for (int sprite = 0; sprite < spriteKeys.length; sprite++)
+      {
+         spriteKeys[sprite] = imageStore.getSpriteKey(sprite);
+      }
+      return new WorldCapture(world, spriteKeys);
+   }
+
+   public Background getBackgroundCell(int x, int y)
+   {
+      return (Background) this.background.getObject(0, y * this.numCols + x);
+   }
+
+   /**
+    * Lets the world write its pages in place again; the capture must not
+    * be read afterwards.
+    */
+   public void release()
+   {
+      this.entities.release();
+      this.background.release();
+   }
+}
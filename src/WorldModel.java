@@ -1,14 +1,38 @@
 import processing.core.PImage;
 
+import java.io.IOException;
 import java.util.*;
 
 public final class WorldModel
 {
    public int numRows;
    public int numCols;
-   private Background background[][];
+   /* the background of each cell, row by row */
+   private Background background[];
+   private FrozenColumns frozenBackground;
    private Entity occupancy[][];
-   public Set<Entity> entities;
+   private long occupiedBits[];
+   private int wordsPerRow;
+   public EntityStore entities;
+   private SpatialIndex index[];
+   private DistanceField blacksmithDistance;
+   private PathFinder paths;
+   private DensityPyramid density;
+
+   /* each region records the mutation count when it last changed */
+   private static final int REGION_SHIFT = 4;
+   private int regionCols;
+   private long regionChanged[];
+   private long mutationCount;
+
+   /* side of the square regions, which double as background chunks */
+   public static final int CHUNK_SIZE = 1 << REGION_SHIFT;
+
+   /* background images of each chunk, or null until asked for */
+   private PImage backgroundChunks[][];
+
+   /* the mutation count when each cell's background or occupant changed */
+   private long cellChanged[];
 
    private final int ORE_REACH = 1;
 
@@ -16,29 +40,211 @@ public final class WorldModel
    {
       this.numRows = numRows;
       this.numCols = numCols;
-      this.background = new Background[numRows][numCols];
+      this.background = new Background[numRows * numCols];
       this.occupancy = new Entity[numRows][numCols];
-      this.entities = new HashSet<>();
-
-      for (int row = 0; row < numRows; row++)
+      this.wordsPerRow = (numCols + Long.SIZE - 1) / Long.SIZE;
+      this.occupiedBits = new long[numRows * this.wordsPerRow];
+      this.entities = new EntityStore();
+      this.index = new SpatialIndex[EntityKind.values().length];
+      for (int i = 0; i < this.index.length; i++)
       {
-         Arrays.fill(this.background[row], defaultBackground);
+         this.index[i] = new SpatialIndex(numRows, numCols);
       }
+      this.blacksmithDistance = new DistanceField(numRows, numCols);
+      this.paths = new PathFinder(this);
+      this.density = new DensityPyramid(numRows, numCols);
+      this.cellChanged = new long[numRows * numCols];
+      this.regionCols = (numCols >> REGION_SHIFT) + 1;
+      this.regionChanged = new long[((numRows >> REGION_SHIFT) + 1) *
+              this.regionCols];
+      this.backgroundChunks = new PImage[this.regionChanged.length][];
+
+      Arrays.fill(this.background, defaultBackground);
    }
 
+   /**
+    * Writes the world to the given file as a SnapshotFile, gzipped if
+    * asked.
+    */
+   public void save(String filename, ImageStore imageStore,
+      boolean compress)
+      throws IOException
+   {
+      SnapshotFile.write(filename, this, imageStore, compress);
+   }
+
+   /**
+    * Reads a world written by save. The images must already be loaded.
+    */
+   public static WorldModel restore(String filename, ImageStore imageStore)
+      throws IOException
+   {
+      return SnapshotFile.read(filename, imageStore);
+   }
+
+   /**
+    * Finds the entity of the given kind nearest to the given Point.
+    * Ties go to the entity with the lowest row, then column.
+    */
    public Optional<Entity> findNearest(Point pos,
                                               EntityKind kind)
    {
-      List<Entity> ofType = new LinkedList<>();
-      for (Entity entity : this.entities)
+      return this.index[kind.ordinal()].nearest(pos);
+   }
+
+   /**
+    * Finds up to k entities of the given kind nearest to the given
+    * Point, nearest first.
+    */
+   public List<Entity> findNearest(Point pos, EntityKind kind, int k)
+   {
+      return this.index[kind.ordinal()].nearest(pos, k);
+   }
+
+   /**
+    * Finds all entities of the given kind within the given radius of
+    * the Point, nearest first.
+    */
+   public List<Entity> findWithin(Point pos, EntityKind kind, int radius)
+   {
+      return this.index[kind.ordinal()].within(pos, radius);
+   }
+
+   /**
+    * Gets the number of steps from (x, y) to a cell beside the
+    * nearest reachable blacksmith, plus one, walking around obstacles,
+    * veins and blacksmiths. A result of 1 means a blacksmith is
+    * adjacent; DistanceField.UNREACHABLE means none can be reached.
+    */
+   public int distanceToBlacksmith(int x, int y)
+   {
+      return this.blacksmithDistance.distance(x, y);
+   }
+
+   /**
+    * Finds the unoccupied neighbor of (x, y) that is one step closer
+    * to a blacksmith, as row * numCols + col, or -1 if there is none.
+    */
+   public int nextStepToBlacksmith(int x, int y)
+   {
+      return this.blacksmithDistance.nextStep(x, y, this);
+   }
+
+   /**
+    * Gets the path finder for use on the simulation thread. Other
+    * threads need a PathFinder of their own.
+    */
+   public PathFinder getPathFinder()
+   {
+      return this.paths;
+   }
+
+   /**
+    * Gets the number of changes made to the grid so far.
+    */
+   public long getMutationCount()
+   {
+      return this.mutationCount;
+   }
+
+   /**
+    * Freezes the background grid, row by row, for reading on another
+    * thread until released.
+    */
+   public FrozenColumns freezeBackground()
+   {
+      this.frozenBackground = new FrozenColumns(
+              new Object[] {this.background}, this.background.length,
+              this.frozenBackground);
+      return this.frozenBackground;
+   }
+
+   /**
+    * Gets the mutation count when the background or occupant of (x, y)
+    * last changed; a cell whose count has moved on since it was drawn
+    * needs drawing again.
+    */
+   public long getCellVersion(int x, int y)
+   {
+      return this.cellChanged[y * this.numCols + x];
+   }
+
+   /**
+    * Gets the region of the grid, 16 cells on a side, that (x, y)
+    * falls in.
+    */
+   public int regionOf(int x, int y)
+   {
+      return (y >> REGION_SHIFT) * this.regionCols + (x >> REGION_SHIFT);
+   }
+
+   /**
+    * Checks that no cell within radius rows and columns of (x, y) has
+    * changed since the grid had the given mutation count. The check
+    * goes by region, so it may report changes just outside the radius;
+    * a negative radius covers the whole grid.
+    */
+   public boolean unchangedSince(int x, int y, int radius, long count)
+   {
+      if (radius < 0)
       {
-         if (entity.kind == kind)
+         return this.mutationCount == count;
+      }
+
+      int minCol = Math.max(x - radius, 0) >> REGION_SHIFT;
+      int maxCol = Math.min(x + radius, this.numCols - 1) >> REGION_SHIFT;
+      int minRow = Math.max(y - radius, 0) >> REGION_SHIFT;
+      int maxRow = Math.min(y + radius, this.numRows - 1) >> REGION_SHIFT;
+
+      for (int row = minRow; row <= maxRow; row++)
+      {
+         for (int col = minCol; col <= maxCol; col++)
          {
-            ofType.add(entity);
+            if (this.regionChanged[row * this.regionCols + col] > count)
+            {
+               return false;
+            }
          }
       }
+      return true;
+   }
+
+   /*
+     Assumes that there is no entity currently occupying the
+     intended destination cell. Entities outside the world are
+     dropped from the entity table.
+   */
+   public void addEntity(Entity entity)
+   {
+      Point pos = entity.getPosition();
+      if (withinBounds(pos))
+      {
+         setOccupancyCell(pos, entity);
+         this.entities.attach(entity.getSlot());
+         this.index[entity.getKind().ordinal()].add(entity, pos);
+         updateDistanceFields(entity.getKind(), pos, true);
+      }
+      else
+      {
+         this.entities.free(entity.getSlot());
+      }
+   }
 
-      return nearestEntity(ofType, pos);
+   /**
+    * Moves the entity to the given Point, removing whatever entity
+    * was there.
+    */
+   public void moveEntity(Entity entity, Point pos)
+   {
+      Point oldPos = entity.getPosition();
+      if (withinBounds(pos) && !pos.equals(oldPos))
+      {
+         setOccupancyCell(oldPos, null);
+         removeEntityAt(pos);
+         setOccupancyCell(pos, entity);
+         entity.setPosition(pos);
+         this.index[entity.getKind().ordinal()].move(entity, oldPos, pos);
+      }
    }
 
 
@@ -49,20 +255,140 @@ public final class WorldModel
     */
    public Optional<Point> findOpenAround(Point pos)
    {
-      for (int dy = -ORE_REACH; dy <= ORE_REACH; dy++)
+      int cell = findOpenAround(pos.x, pos.y);
+      if (cell < 0)
       {
-         for (int dx = -ORE_REACH; dx <= ORE_REACH; dx++)
+         return Optional.empty();
+      }
+      return Optional.of(new Point(cell % this.numCols, cell / this.numCols));
+   }
+
+   /**
+    * Gets the highest block level, at which one block covers the world.
+    */
+   public int getBlockLevels()
+   {
+      return this.density.getLevels();
+   }
+
+   /**
+    * Gets the number of entities in the block of cells 2^level on a
+    * side at the given block column and row. Level 0 is a single cell.
+    */
+   public int getBlockCount(int level, int blockCol, int blockRow)
+   {
+      if (level == 0)
+      {
+         return isOccupied(blockCol, blockRow) ? 1 : 0;
+      }
+      return this.density.count(level, blockCol, blockRow);
+   }
+
+   /**
+    * Gets the ordinal of the most common entity kind in the given block,
+    * or -1 if it is empty.
+    */
+   public int getBlockKind(int level, int blockCol, int blockRow)
+   {
+      if (level == 0)
+      {
+         Entity occupant = getOccupant(blockCol, blockRow);
+         return occupant == null ? -1 : occupant.getKind().ordinal();
+      }
+      return this.density.dominantKind(level, blockCol, blockRow);
+   }
+
+   /**
+    * Finds the entities in the rectangle of cells with its top left
+    * corner at (col, row), row by row, and stores them in found. Only
+    * the occupied bits of the rectangle are visited, so the cost goes
+    * with its size rather than the number of entities in the world.
+    * Returns how many were found.
+    */
+   public int findOccupants(int col, int row, int cols, int rows,
+      Entity found[])
+   {
+      int firstCol = Math.max(col, 0);
+      int lastCol = Math.min(col + cols, this.numCols) - 1;
+      int firstRow = Math.max(row, 0);
+      int lastRow = Math.min(row + rows, this.numRows) - 1;
+      int count = 0;
+
+      for (int y = firstRow; y <= lastRow && firstCol <= lastCol; y++)
+      {
+         for (int word = firstCol / Long.SIZE; word <= lastCol / Long.SIZE;
+              word++)
          {
-            Point newPt = new Point(pos.x + dx, pos.y + dy);
-            if (withinBounds(newPt) &&
-                    !isOccupied(newPt))
+            long bits = this.occupiedBits[y * this.wordsPerRow + word];
+
+            // drop the columns of the word outside the rectangle
+            int low = Math.max(firstCol - word * Long.SIZE, 0);
+            int high = Math.min(lastCol - word * Long.SIZE, Long.SIZE - 1);
+            bits &= -1L << low;
+            bits &= -1L >>> (Long.SIZE - 1 - high);
+
+            while (bits != 0)
             {
-               return Optional.of(newPt);
+               int x = word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+               found[count++] = this.occupancy[y][x];
+               bits &= bits - 1;
             }
          }
       }
 
-      return Optional.empty();
+      return count;
+   }
+
+   /**
+    * Finds the first open position around (x, y), scanning rows top to
+    * bottom and columns left to right. Returns the cell as
+    * row * numCols + col, or -1 if every position is taken.
+    */
+   public int findOpenAround(int x, int y)
+   {
+      int width = 2 * ORE_REACH + 1;
+      long window = (1L << width) - 1;
+
+      for (int row = Math.max(y - ORE_REACH, 0);
+           row <= Math.min(y + ORE_REACH, this.numRows - 1); row++)
+      {
+         long open = ~occupiedBits(row, x - ORE_REACH, width) & window;
+         if (open != 0)
+         {
+            return row * this.numCols + x - ORE_REACH +
+                    Long.numberOfTrailingZeros(open);
+         }
+      }
+
+      return -1;
+   }
+
+   /*
+      Gets count (< 64) occupancy bits of the row starting at col, one
+      bit per cell. Cells outside the world read as occupied.
+   */
+   private long occupiedBits(int row, int col, int count)
+   {
+      int from = Math.max(col, 0);
+      int to = Math.min(col + count, this.numCols);
+      long all = (1L << count) - 1;
+
+      if (from >= to)
+      {
+         return all;
+      }
+
+      int length = to - from;
+      int word = row * this.wordsPerRow + from / Long.SIZE;
+      int offset = from % Long.SIZE;
+      long bits = this.occupiedBits[word] >>> offset;
+      if (offset + length > Long.SIZE)
+      {
+         bits |= this.occupiedBits[word + 1] << (Long.SIZE - offset);
+      }
+
+      long inside = ((1L << length) - 1) << (from - col);
+      return ((bits << (from - col)) & inside) | (all & ~inside);
    }
 
    public Optional<Entity> nearestEntity(List<Entity> entities,
@@ -75,13 +401,15 @@ public final class WorldModel
       else
       {
          Entity nearest = entities.get(0);
-         int nearestDistance = distanceSquared(nearest.position, pos);
+         int nearestDistance = distanceSquared(nearest.getPosition(), pos);
 
          for (Entity other : entities)
          {
-            int otherDistance = distanceSquared(other.position, pos);
+            Point otherPos = other.getPosition();
+            int otherDistance = distanceSquared(otherPos, pos);
 
-            if (otherDistance < nearestDistance)
+            if (SpatialIndex.closer(otherDistance, otherPos.x, otherPos.y,
+                    nearestDistance, nearest.getX(), nearest.getY()))
             {
                nearest = other;
                nearestDistance = otherDistance;
@@ -109,14 +437,41 @@ public final class WorldModel
               && getOccupancyCell(pos) != null)
       {
          Entity entity = getOccupancyCell(pos);
+         this.index[entity.getKind().ordinal()].remove(entity, pos);
+         updateDistanceFields(entity.getKind(), pos, false);
 
-         /* this moves the entity just outside of the grid for
-            debugging purposes */
-         entity.position = new Point(-1, -1);
-         this.entities.remove(entity);
+         /* freeing the entity's data leaves its position reading as
+            just outside of the grid, for debugging purposes */
          setOccupancyCell(pos, null);
+         this.entities.free(entity.getSlot());
+      }
+   }
+
+   /*
+      Only entities that never move shape the distance fields; anything
+      that moves is stepped around when the field is read.
+   */
+   private void updateDistanceFields(EntityKind kind, Point pos,
+                                     boolean present)
+   {
+      switch (kind)
+      {
+         case BLACKSMITH:
+            this.blacksmithDistance.setCell(pos.x, pos.y, present
+                    ? DistanceField.SOURCE : DistanceField.OPEN);
+            break;
+
+         case OBSTACLE:
+         case VEIN:
+            this.blacksmithDistance.setCell(pos.x, pos.y, present
+                    ? DistanceField.BLOCKED : DistanceField.OPEN);
+            break;
+
+         default:
+            break;
       }
    }
+
    public boolean withinBounds(Point pos)
    {
       return pos.y >= 0 && pos.y < this.numRows &&
@@ -125,13 +480,51 @@ public final class WorldModel
 
    public void setOccupancyCell(Point pos,Entity entity)
    {
+      Entity old = this.occupancy[pos.y][pos.x];
+      if (old != null)
+      {
+         this.density.add(pos.x, pos.y, old.getKind(), -1);
+      }
+      if (entity != null)
+      {
+         this.density.add(pos.x, pos.y, entity.getKind(), 1);
+      }
+
       this.occupancy[pos.y][pos.x] = entity;
+      this.regionChanged[regionOf(pos.x, pos.y)] = ++this.mutationCount;
+      this.cellChanged[pos.y * this.numCols + pos.x] = this.mutationCount;
+
+      int word = pos.y * this.wordsPerRow + pos.x / Long.SIZE;
+      long bit = 1L << (pos.x % Long.SIZE);
+      if (entity != null)
+      {
+         this.occupiedBits[word] |= bit;
+      }
+      else
+      {
+         this.occupiedBits[word] &= ~bit;
+      }
    }
 
    public  boolean isOccupied(Point pos)
    {
-      return this.withinBounds(pos) &&
-              getOccupancyCell(pos) != null;
+      return isOccupied(pos.x, pos.y);
+   }
+
+   public boolean isOccupied(int x, int y)
+   {
+      return y >= 0 && y < this.numRows && x >= 0 && x < this.numCols &&
+              (this.occupiedBits[y * this.wordsPerRow + x / Long.SIZE] &
+                      (1L << (x % Long.SIZE))) != 0;
+   }
+
+   /**
+    * Gets the entity at (x, y), or null if the cell is empty or
+    * outside the world.
+    */
+   public Entity getOccupant(int x, int y)
+   {
+      return isOccupied(x, y) ? this.occupancy[y][x] : null;
    }
    public int distanceSquared(Point p1, Point p2)
    {
@@ -157,35 +550,87 @@ public final class WorldModel
          return Optional.empty();
       }
    }
+   /**
+    * Gets the background images of the chunk at the given chunk column
+    * and row, CHUNK_SIZE cells on a side, row by row and null outside
+    * the world. The array is never changed once handed out; changing a
+    * cell's background makes a new one for its chunk, so a caller can
+    * tell that a chunk changed by the array being a different one.
+    */
+   public PImage[] getBackgroundChunk(int chunkCol, int chunkRow)
+   {
+      int chunk = chunkRow * this.regionCols + chunkCol;
+      PImage tiles[] = this.backgroundChunks[chunk];
+
+      if (tiles == null)
+      {
+         tiles = new PImage[CHUNK_SIZE * CHUNK_SIZE];
+         for (int row = 0; row < CHUNK_SIZE; row++)
+         {
+            for (int col = 0; col < CHUNK_SIZE; col++)
+            {
+               int x = chunkCol * CHUNK_SIZE + col;
+               int y = chunkRow * CHUNK_SIZE + row;
+               if (x < this.numCols && y < this.numRows)
+               {
+                  tiles[row * CHUNK_SIZE + col] =
+                          getCurrentImage(getBackgroundCell(x, y));
+               }
+            }
+         }
+         this.backgroundChunks[chunk] = tiles;
+      }
+
+      return tiles;
+   }
+
    public Background getBackgroundCell(Point pos)
    {
-      return this.background[pos.y][pos.x];
+      return getBackgroundCell(pos.x, pos.y);
    }
-   public  void setBackgroundCell(Point pos,Background background)
+
+   public Background getBackgroundCell(int x, int y)
    {
-      this.background[pos.y][pos.x] = background;
+      return this.background[y * this.numCols + x];
    }
 
    /**
-    * Gets the current image associated with the specified entity.
+    * Sets the background of length cells of row y, starting at column x.
     */
-   public static PImage getCurrentImage(Object entity)
+   public void fillBackground(int x, int y, int length, Background background)
    {
-      if (entity instanceof Background)
-      {
-         return ((Background)entity).images
-                 .get(((Background)entity).imageIndex);
-      }
-      else if (entity instanceof Entity)
+      ++this.mutationCount;
+      for (int col = x; col < x + length; col++)
       {
-         return ((Entity)entity).images.get(((Entity)entity).imageIndex);
+         beforeBackgroundWrite(y * this.numCols + col);
+         this.background[y * this.numCols + col] = background;
+         this.backgroundChunks[regionOf(col, y)] = null;
+         this.cellChanged[y * this.numCols + col] = this.mutationCount;
       }
-      else
+   }
+   public  void setBackgroundCell(Point pos,Background background)
+   {
+      beforeBackgroundWrite(pos.y * this.numCols + pos.x);
+      this.background[pos.y * this.numCols + pos.x] = background;
+      this.backgroundChunks[regionOf(pos.x, pos.y)] = null;
+      this.cellChanged[pos.y * this.numCols + pos.x] = ++this.mutationCount;
+   }
+
+   private void beforeBackgroundWrite(int cell)
+   {
+      if (this.frozenBackground != null)
       {
-         throw new UnsupportedOperationException(
-                 String.format("getCurrentImage not supported for %s",
-                         entity));
+         this.frozenBackground = this.frozenBackground.beforeWrite(cell);
       }
    }
 
+   /**
+    * Gets the image of the specified background. Entities are drawn
+    * from the SpriteAtlas instead.
+    */
+   public static PImage getCurrentImage(Background background)
+   {
+      return background.images.get(background.imageIndex);
+   }
+
 }
@@ -1,69 +1,433 @@
 import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PGraphics;
 import processing.core.PImage;
 
-import java.util.Optional;
-
+/**
+ * Draws the snapshots published by the simulation thread. Nothing here
+ * touches the world itself. A view made without a simulation only
+ * renders the snapshots it is given, off screen.
+ *
+ * Tiles are kept in an offscreen buffer that is put on the screen in
+ * one piece each frame. A tile is only drawn again when its cell has
+ * changed in the world or its entity has moved on to another frame;
+ * moving the viewport redraws them all. Backgrounds come from cached
+ * chunk images rather than being drawn tile by tile.
+ *
+ * Zoomed out, each tile is a block of cells filled with the color of
+ * its most common kind, brighter the more crowded the block is, so no
+ * sprites are drawn at all. A minimap of the whole world sits in the
+ * corner of the screen; clicking it moves the view there.
+ */
 public final class WorldView
 {
+   private static final int MINIMAP_PIXELS = 160;
+   private static final int MINIMAP_MARGIN = 8;
+
+   private static final int OUTSIDE_COLOR = 0xff000000;
+   private static final int GROUND_COLOR = 0xff2e5a1c;
+   private static final int MINIMAP_BORDER_COLOR = 0xff000000;
+   private static final int MINIMAP_FRAME_COLOR = 0xffffffff;
+
+   /* by EntityKind ordinal */
+   private static final int KIND_COLORS[] = {
+      0xff8b4513,    // BLACKSMITH
+      0xffffd700,    // MINER_FULL
+      0xffff8c00,    // MINER_NOT_FULL
+      0xff9a9a9a,    // OBSTACLE
+      0xffb22222,    // ORE
+      0xffff3030,    // ORE_BLOB
+      0xffffffff,    // QUAKE
+      0xff4682b4     // VEIN
+   };
+
+   /* a block at least this crowded shows its kind's full color */
+   private static final float CROWDED_DENSITY = 0.25f;
+   private static final float MIN_WEIGHT = 0.4f;
+
    private PApplet screen;
-   private WorldModel world;
+   private SimulationThread simulation;
+   private SimulationClock clock;
+   private SpriteAtlas atlas;
    private int tileWidth;
    private int tileHeight;
    public Viewport viewport;
+   private RenderSnapshot snapshot;
+
+   private PGraphics buffer;
+   private BackgroundChunkCache chunks;
+   private long drawnVersion[];
+   /* the atlas frame drawn in each cell, or -1 */
+   private int drawnEntity[];
+   private boolean redrawAll;
+
+   private PImage minimapImage;
+   private RenderSnapshot.Minimap drawnMinimap;
 
-   public WorldView(int numRows, int numCols, PApplet screen, WorldModel world,
+   public WorldView(int numRows, int numCols, PApplet screen,
+      SimulationThread simulation, SimulationClock clock, SpriteAtlas atlas,
       int tileWidth, int tileHeight)
    {
       this.screen = screen;
-      this.world = world;
+      this.simulation = simulation;
+      this.clock = clock;
+      this.atlas = atlas;
       this.tileWidth = tileWidth;
       this.tileHeight = tileHeight;
       this.viewport = new Viewport(numRows, numCols);
+      this.buffer = screen.createGraphics(numCols * tileWidth,
+              numRows * tileHeight);
+      this.chunks = new BackgroundChunkCache(screen, tileWidth, tileHeight);
+      this.drawnVersion = new long[numRows * numCols];
+      this.drawnEntity = new int[numRows * numCols];
+      this.redrawAll = true;
+   }
+
+   public WorldView(int numRows, int numCols, PApplet screen,
+      SpriteAtlas atlas, int tileWidth, int tileHeight)
+   {
+      this(numRows, numCols, screen, null, null, atlas, tileWidth,
+              tileHeight);
+   }
+
+   /**
+    * Draws the latest snapshot, moving the viewport to where the
+    * snapshot was taken.
+    */
+   public void drawFrame()
+   {
+      show(this.simulation.getSnapshot());
+      this.viewport.drawViewport(this);
+   }
+
+   /**
+    * Brings the offscreen buffer up to date with the given snapshot as
+    * it looks at the given time, and returns the buffer without putting
+    * it on the screen.
+    */
+   public PGraphics render(RenderSnapshot snapshot, long time)
+   {
+      show(snapshot);
+      drawTiles(time);
+      return this.buffer;
+   }
+
+   /**
+    * Brings the tiles in the offscreen buffer up to date with the
+    * snapshot.
+    */
+   public void drawDirtyTiles()
+   {
+      drawTiles(this.clock.currentTime());
+   }
+
+   private void show(RenderSnapshot snapshot)
+   {
+      this.snapshot = snapshot;
+      if (snapshot.viewCol != this.viewport.col ||
+              snapshot.viewRow != this.viewport.row ||
+              snapshot.zoom != this.viewport.zoom)
+      {
+         this.viewport.shift(snapshot.viewCol, snapshot.viewRow);
+         this.viewport.zoom(snapshot.zoom);
+         this.redrawAll = true;
+      }
    }
-   public void drawBackground()
+
+   private void drawTiles(long time)
    {
-      for (int row = 0; row < this.viewport.numRows; row++)
+      RenderSnapshot frame = this.snapshot;
+
+      this.buffer.beginDraw();
+      if (frame.zoom > 0)
       {
-         for (int col = 0; col < this.viewport.numCols; col++)
+         drawBlocks(frame);
+         this.buffer.endDraw();
+         return;
+      }
+
+      if (this.redrawAll)
+      {
+         this.buffer.background(0);
+         for (int c = 0; c < frame.chunkCount; c++)
+         {
+            this.buffer.image(chunkImage(frame, c),
+                    chunkX(frame, c), chunkY(frame, c));
+         }
+      }
+
+      for (int cell = 0; cell < frame.cellVersion.length; cell++)
+      {
+         int entity = frame.cellEntity[cell];
+         int entityFrame = entity >= 0
+                 ? frame.entityFrame(entity, this.atlas, time) : -1;
+
+         if (this.redrawAll)
          {
-            Point worldPoint = this.viewport.viewportToWorld(col, row);
-            Optional<PImage> image = world.getBackgroundImage(worldPoint);
-            if (image.isPresent())
+            // the background is already down
+            if (entityFrame >= 0)
             {
-               this.screen.image(image.get(), col * this.tileWidth,
-                       row * this.tileHeight);
+               this.atlas.draw(this.buffer, entityFrame,
+                       cell % frame.numCols * this.tileWidth,
+                       cell / frame.numCols * this.tileHeight);
             }
+            this.drawnVersion[cell] = frame.cellVersion[cell];
+            this.drawnEntity[cell] = entityFrame;
+         }
+         else if (frame.cellVersion[cell] != this.drawnVersion[cell]
+                 || entityFrame != this.drawnEntity[cell])
+         {
+            drawTile(frame, cell % frame.numCols, cell / frame.numCols,
+                    entityFrame);
+            this.drawnVersion[cell] = frame.cellVersion[cell];
+            this.drawnEntity[cell] = entityFrame;
          }
       }
+      this.buffer.endDraw();
+
+      this.redrawAll = false;
+   }
+
+   /*
+      Fills each tile with the color of its block. There is one rectangle
+      per tile, however many entities the blocks hold.
+   */
+   private void drawBlocks(RenderSnapshot frame)
+   {
+      int area = 1 << 2 * frame.zoom;
+      this.buffer.noStroke();
+      for (int tile = 0; tile < frame.blockKind.length; tile++)
+      {
+         this.buffer.fill(blockColor(frame.blockKind[tile],
+                 frame.blockCount[tile], area));
+         this.buffer.rect(tile % frame.numCols * this.tileWidth,
+                 tile / frame.numCols * this.tileHeight,
+                 this.tileWidth, this.tileHeight);
+      }
+   }
+
+   /**
+    * Puts the offscreen buffer on the screen, with the minimap over it.
+    */
+   public void drawBuffer()
+   {
+      this.screen.image(this.buffer, 0, 0);
+      drawMinimap();
+   }
+
+   /**
+    * Moves the view to the world cell under the given screen point if
+    * it falls on the minimap. Returns whether it did.
+    */
+   public boolean clickMinimap(int x, int y)
+   {
+      RenderSnapshot.Minimap minimap = this.drawnMinimap;
+      if (minimap == null)
+      {
+         return false;
+      }
+
+      int scale = minimapScale(minimap);
+      int col = (x - minimapX(minimap)) / scale;
+      int row = (y - minimapY(minimap)) / scale;
+      if (x < minimapX(minimap) || y < minimapY(minimap) ||
+              col >= minimap.cols || row >= minimap.rows)
+      {
+         return false;
+      }
+
+      // the middle of the block that was clicked
+      int half = (1 << minimap.level) / 2;
+      this.simulation.jumpView((col << minimap.level) + half,
+              (row << minimap.level) + half);
+      return true;
    }
 
-   public void drawEntities()
+   /**
+    * Asks the simulation to zoom out (positive) or in (negative); the
+    * change shows up with the next snapshot.
+    */
+   public void zoomView(int zoomDelta)
    {
-      for (Entity entity : this.world.entities)
+      this.simulation.zoomView(zoomDelta);
+   }
+
+   /*
+      Draws the minimap and the outline of the view on it. Its image is
+      only colored again when the snapshot brings a new one.
+   */
+   private void drawMinimap()
+   {
+      RenderSnapshot.Minimap minimap = this.snapshot.minimap;
+      int scale = minimapScale(minimap);
+      if (minimap != this.drawnMinimap)
       {
-         Point pos = entity.position;
+         int width = minimap.cols * scale;
+         if (this.minimapImage == null ||
+                 this.minimapImage.width != width ||
+                 this.minimapImage.height != minimap.rows * scale)
+         {
+            this.minimapImage = new PImage(width, minimap.rows * scale,
+                    PConstants.RGB);
+         }
 
-         if (this.viewport.contains(pos))
+         // scaled up here, pixel for pixel, so drawing it cannot blur it
+         this.minimapImage.loadPixels();
+         int area = 1 << 2 * minimap.level;
+         for (int py = 0; py < this.minimapImage.height; py++)
          {
-            Point viewPoint = this.viewport.worldToViewport(pos.x, pos.y);
-            this.screen.image(this.world.getCurrentImage(entity),
-                    viewPoint.x * this.tileWidth, viewPoint.y * this.tileHeight);
+            for (int px = 0; px < width; px++)
+            {
+               int block = py / scale * minimap.cols + px / scale;
+               this.minimapImage.pixels[py * width + px] = blockColor(
+                       minimap.kind[block], minimap.count[block], area);
+            }
          }
+         this.minimapImage.updatePixels();
+         this.drawnMinimap = minimap;
       }
+
+      int x = minimapX(minimap);
+      int y = minimapY(minimap);
+      this.screen.image(this.minimapImage, x, y);
+
+      this.screen.noFill();
+      this.screen.stroke(MINIMAP_BORDER_COLOR);
+      this.screen.rect(x - 1, y - 1, this.minimapImage.width + 1,
+              this.minimapImage.height + 1);
+      this.screen.stroke(MINIMAP_FRAME_COLOR);
+      this.screen.rect(x + (this.snapshot.viewCol >> minimap.level) * scale,
+              y + (this.snapshot.viewRow >> minimap.level) * scale,
+              Math.min(this.viewport.getWorldCols() >> minimap.level,
+                      minimap.cols) * scale,
+              Math.min(this.viewport.getWorldRows() >> minimap.level,
+                      minimap.rows) * scale);
    }
 
-   public  void shiftView(int colDelta, int rowDelta)
+   private static int minimapScale(RenderSnapshot.Minimap minimap)
+   {
+      return Math.max(1,
+              MINIMAP_PIXELS / Math.max(minimap.cols, minimap.rows));
+   }
+
+   private int minimapX(RenderSnapshot.Minimap minimap)
+   {
+      return this.screen.width - MINIMAP_MARGIN -
+              minimap.cols * minimapScale(minimap);
+   }
+
+   private int minimapY(RenderSnapshot.Minimap minimap)
    {
-      int newCol = clamp(this.viewport.col + colDelta, 0,
-              this.world.numCols - this.viewport.numCols);
-      int newRow = clamp(this.viewport.row + rowDelta, 0,
-              this.world.numRows - this.viewport.numRows);
+      return this.screen.height - MINIMAP_MARGIN -
+              minimap.rows * minimapScale(minimap);
+   }
+
+   /*
+      The color of a block of the given area: its most common kind's,
+      mixed with the ground's the emptier the block is.
+   */
+   private static int blockColor(int kind, int count, int area)
+   {
+      if (kind == RenderSnapshot.OUTSIDE)
+      {
+         return OUTSIDE_COLOR;
+      }
+      if (kind < 0)
+      {
+         return GROUND_COLOR;
+      }
 
-      this.viewport.shift(newCol, newRow);
+      float weight = MIN_WEIGHT + (1 - MIN_WEIGHT) *
+              Math.min(1f, count / (area * CROWDED_DENSITY));
+      int color = 0xff000000;
+      for (int shift = 0; shift < 24; shift += 8)
+      {
+         int ground = GROUND_COLOR >> shift & 0xff;
+         int kindPart = KIND_COLORS[kind] >> shift & 0xff;
+         color |= Math.round(ground + (kindPart - ground) * weight) << shift;
+      }
+      return color;
+   }
+
+   /**
+    * Asks the simulation to move the viewport; the move shows up with
+    * the next snapshot.
+    */
+   public  void shiftView(int colDelta, int rowDelta)
+   {
+      this.simulation.shiftView(colDelta, rowDelta);
    }
 
    public static int clamp(int value, int low, int high)
    {
       return Math.min(high, Math.max(value, low));
    }
+
+   /*
+      Draws one tile: its part of the background chunk, then its entity.
+   */
+   private void drawTile(RenderSnapshot frame, int col, int row,
+      int entityFrame)
+   {
+      int x = col * this.tileWidth;
+      int y = row * this.tileHeight;
+      int c = chunkOf(frame, frame.viewCol + col, frame.viewRow + row);
+
+      this.buffer.clip(x, y, this.tileWidth, this.tileHeight);
+      if (c >= 0)
+      {
+         this.buffer.image(chunkImage(frame, c), chunkX(frame, c),
+                 chunkY(frame, c));
+      }
+      else
+      {
+         // outside the world; nothing should show through from before
+         this.buffer.noStroke();
+         this.buffer.fill(0);
+         this.buffer.rect(x, y, this.tileWidth, this.tileHeight);
+      }
+      this.buffer.noClip();
+
+      if (entityFrame >= 0)
+      {
+         this.atlas.draw(this.buffer, entityFrame, x, y);
+      }
+   }
+
+   private PGraphics chunkImage(RenderSnapshot frame, int c)
+   {
+      return this.chunks.getImage(frame.chunkCol[c], frame.chunkRow[c],
+              frame.chunkTiles[c]);
+   }
+
+   private int chunkX(RenderSnapshot frame, int c)
+   {
+      return (frame.chunkCol[c] * WorldModel.CHUNK_SIZE - frame.viewCol) *
+              this.tileWidth;
+   }
+
+   private int chunkY(RenderSnapshot frame, int c)
+   {
+      return (frame.chunkRow[c] * WorldModel.CHUNK_SIZE - frame.viewRow) *
+              this.tileHeight;
+   }
+
+   /*
+      Finds which of the snapshot's chunks, laid out row by row, holds
+      the world cell (x, y), or -1 for a cell past the edge of the world.
+   */
+   private static int chunkOf(RenderSnapshot frame, int x, int y)
+   {
+      int col = x / WorldModel.CHUNK_SIZE;
+      int row = y / WorldModel.CHUNK_SIZE;
+      int lastCol = frame.chunkCol[frame.chunkCount - 1];
+      int lastRow = frame.chunkRow[frame.chunkCount - 1];
+      if (col > lastCol || row > lastRow)
+      {
+         return -1;
+      }
+
+      int width = lastCol - frame.chunkCol[0] + 1;
+      return (row - frame.chunkRow[0]) * width + col - frame.chunkCol[0];
+   }
 }